@@ -0,0 +1,65 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.api.Stream.Listener;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.util.Callback;
+
+/**
+ * Runs a task once, when the response is received or the stream is reset.
+ */
+final class CompletionListener extends Listener.Adapter {
+
+    private final Runnable task;
+
+    private boolean completed;
+
+    CompletionListener(final Runnable task) {
+        this.task = task;
+    }
+
+    @Override
+    public void onHeaders(final Stream stream, final HeadersFrame frame) {
+        if (frame.isEndStream()) {
+            complete();
+        }
+    }
+
+    @Override
+    public void onData(final Stream stream, final DataFrame frame, final Callback callback) {
+        callback.succeeded();
+        if (frame.isEndStream()) {
+            complete();
+        }
+    }
+
+    @Override
+    public void onReset(final Stream stream, final ResetFrame frame) {
+        complete();
+    }
+
+    private void complete() {
+        if (!completed) {
+            completed = true;
+            task.run();
+        }
+    }
+}
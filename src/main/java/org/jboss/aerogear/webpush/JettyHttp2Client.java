@@ -17,20 +17,37 @@
 package org.jboss.aerogear.webpush;
 
 import org.eclipse.jetty.http.HttpFields;
-import org.eclipse.jetty.http.HttpURI;
-import org.eclipse.jetty.http.HttpVersion;
-import org.eclipse.jetty.http.MetaData.Request;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http.MetaData.Response;
+import org.eclipse.jetty.http2.ErrorCode;
 import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
 import org.eclipse.jetty.http2.api.Stream.Listener;
-import org.eclipse.jetty.http2.api.server.ServerSessionListener;
 import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.GoAwayFrame;
 import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.PingFrame;
+import org.eclipse.jetty.http2.frames.PushPromiseFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.http2.frames.SettingsFrame;
+import org.eclipse.jetty.util.Callback;
 import org.eclipse.jetty.util.FuturePromise;
 import org.eclipse.jetty.util.Promise;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.Scheduler;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 class JettyHttp2Client {
@@ -39,59 +56,781 @@ class JettyHttp2Client {
     private static final String POST = "POST";
     private static final String DELETE = "DELETE";
 
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long NEW_STREAM_RETRY_DELAY_MILLIS = 1000;
+    private static final int RESERVED_STREAMS = 4;
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
+    private static final long MAX_RETRY_AFTER_SECONDS = 300;
+    private static final int REQUEST_TEMPLATES_CAPACITY = 1024;
+    private static final int RESOURCE_RATE_LIMITS_CAPACITY = 1024;
+
     private final String host;
     private final int port;
-    private final String serverUri;
 
+    private final WebPushTransport transport;
     private final HTTP2Client client;
     private final SslContextFactory sslContextFactory;
+    private final SessionListener sessionListener = new SessionListener();
+    private final RoundTripHistogram pingRoundTripTimes = new RoundTripHistogram();
 
+    //guarded by this
+    private final Queue<PendingRequest> pendingRequests = new PriorityQueue<>();
+    private final Set<PendingRequest> activeRequests = new HashSet<>();
+    private final Queue<PendingRequest> deferredRequests
+            = new PriorityQueue<>(Comparator.comparingLong((PendingRequest request) -> request.readyAtNanos));
+    private final Map<String, TokenBucket> resourceRateLimits = newResourceRateLimits();
+    private final RequestTemplates requestTemplates;
+    private TokenBucket sessionRateLimit;
+    private double resourceRequestsPerSecond;
+    private int resourceBurst;
+    private boolean paused;
+    private long pausedUntilNanos;
+    private Scheduler.Task drainTask;
+    private long drainDeadlineNanos;
+    private long requestSequence;
+    private int longLivedStreams;
+    private int maxConcurrentStreams = Integer.MAX_VALUE;
+    private long pingIntervalMillis = 5000;
+    private int maxMissedPings = 3;
+    private boolean connected;
     private Session session;
+    private PingKeepalive keepalive;
 
-    JettyHttp2Client(final String host, final int port, final boolean trustAll) {
+    JettyHttp2Client(final String host, final int port, final WebPushTransport transport) {
         Objects.requireNonNull(host, "host");
+        Objects.requireNonNull(transport, "transport");
         if (port < 0 || port > 65535) {
             throw new IllegalArgumentException("port value must be between 0 and 65535, current value: " + port);
         }
         this.host = host;
         this.port = port;
-        this.serverUri = "https://" + host + ":" + port;
+        requestTemplates = new RequestTemplates("https", host, port, REQUEST_TEMPLATES_CAPACITY);
+
+        this.transport = transport;
+        client = transport.client();
+        sslContextFactory = transport.sslContextFactory();
+    }
+
+    /**
+     * Configures PING keepalive for the next sessions.
+     *
+     * @param pingIntervalMillis interval between PINGs, {@code 0} disables keepalive.
+     * @param maxMissedPings     number of missed PINGs in a row after which the session is declared dead.
+     */
+    public synchronized void keepalive(final long pingIntervalMillis, final int maxMissedPings) {
+        if (pingIntervalMillis < 0) {
+            throw new IllegalArgumentException("pingIntervalMillis must not be negative, current value: "
+                    + pingIntervalMillis);
+        }
+        if (maxMissedPings < 1) {
+            throw new IllegalArgumentException("maxMissedPings must be positive, current value: " + maxMissedPings);
+        }
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.maxMissedPings = maxMissedPings;
+    }
 
-        client = new HTTP2Client();
-        sslContextFactory = new SslContextFactory(trustAll);
-        client.addBean(sslContextFactory);
+    /**
+     * Limits the rate of requests sent on the session of this client.
+     */
+    public synchronized void rateLimit(final double requestsPerSecond, final int burst) {
+        sessionRateLimit = new TokenBucket(requestsPerSecond, burst);
+    }
+
+    /**
+     * Limits the rate of requests sent for each subscription resource.
+     */
+    public synchronized void resourceRateLimit(final double requestsPerSecond, final int burst) {
+        TokenBucket.validate(requestsPerSecond, burst);
+        resourceRequestsPerSecond = requestsPerSecond;
+        resourceBurst = burst;
+        resourceRateLimits.clear();
+    }
+
+    /**
+     * Drops rate limit and cached request templates of a resource which will not be requested anymore.
+     */
+    public synchronized void forgetResource(final String resource) {
+        resourceRateLimits.remove(resource);
+        requestTemplates.remove(resource);
+    }
+
+    public Executor executor() {
+        return transport.executor();
+    }
+
+    public RoundTripHistogram pingRoundTripTimes() {
+        return pingRoundTripTimes;
     }
 
     public void connect() throws Exception {
-        client.start();
-        FuturePromise<Session> sessionPromise = new FuturePromise<>();
-        client.connect(sslContextFactory, new InetSocketAddress(host, port), new ServerSessionListener.Adapter(),
-                sessionPromise);
-        session = sessionPromise.get(5, TimeUnit.SECONDS);
+        synchronized (this) {
+            if (connected) {
+                throw new IllegalStateException("already connected");
+            }
+            transport.retain();
+            connected = true;
+        }
+        try {
+            FuturePromise<Session> sessionPromise = new FuturePromise<>();
+            newSession(sessionListener, sessionPromise);
+            sessionOpened(sessionPromise.get(5, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            disconnect();
+            throw e;
+        }
     }
 
+    /**
+     * Closes the session of this client and releases the shared transport.
+     */
     public void disconnect() throws Exception {
-        client.stop();
-        session = null;
+        final Session session;
+        synchronized (this) {
+            if (!connected) {
+                return;
+            }
+            connected = false;
+            session = this.session;
+            this.session = null;
+            if (keepalive != null) {
+                keepalive.stop();
+                keepalive = null;
+            }
+            pendingRequests.clear();
+            activeRequests.clear();
+            longLivedStreams = 0;
+            deferredRequests.clear();
+            paused = false;
+            if (drainTask != null) {
+                drainTask.cancel();
+                drainTask = null;
+            }
+        }
+        if (session != null) {
+            session.close(ErrorCode.NO_ERROR.code, null, Callback.NOOP);
+        }
+        transport.release();
+    }
+
+    private synchronized void sessionOpened(final Session session) {
+        if (!connected) {
+            session.close(ErrorCode.NO_ERROR.code, null, Callback.NOOP);
+            return;
+        }
+        this.session = session;
+        if (pingIntervalMillis > 0) {
+            keepalive = new PingKeepalive(session, transport.scheduler(), pingIntervalMillis, maxMissedPings,
+                    pingRoundTripTimes, () -> sessionClosed(session, -1));
+            keepalive.start();
+        }
+        sendPendingRequests();
+    }
+
+    /**
+     * Fails over to a new session when the current one is closed by WebPush Server, fails or misses too many PINGs.
+     * Retryable requests are queued again and sent on the new session. Subscribe requests and push messages
+     * are sent again only if WebPush Server did not process them, that is their stream was not opened yet
+     * or its id is above the last stream id of GOAWAY. The others are completed with a reset,
+     * so a subscription is not created twice and a push message is not delivered twice.
+     *
+     * @param lastStreamId last stream id processed by WebPush Server, {@code -1} if unknown.
+     */
+    private void sessionClosed(final Session deadSession, final int lastStreamId) {
+        synchronized (this) {
+            if (session != deadSession) {
+                return; //already handled or disconnected
+            }
+            session = null;
+            if (keepalive != null) {
+                keepalive.stop();
+                keepalive = null;
+            }
+            for (final PendingRequest request : activeRequests) {
+                final Stream stream = request.stream;
+                request.attempt = null;
+                request.stream = null;
+                if (request.retryable || stream == null || stream.getId() > lastStreamId) {
+                    pendingRequests.add(request);
+                } else {
+                    final Listener listener = request.listener;
+                    transport.executor().execute(() -> listener.onReset(stream,
+                            new ResetFrame(stream.getId(), ErrorCode.CANCEL_STREAM_ERROR.code)));
+                }
+            }
+            activeRequests.clear();
+            longLivedStreams = 0;
+        }
+        deadSession.close(ErrorCode.NO_ERROR.code, null, Callback.NOOP);
+        reconnect();
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            if (!connected) {
+                return;
+            }
+        }
+        newSession(sessionListener, new Promise<Session>() {
+
+            @Override
+            public void succeeded(final Session session) {
+                sessionOpened(session);
+            }
+
+            @Override
+            public void failed(final Throwable x) {
+                transport.scheduler().schedule(JettyHttp2Client.this::reconnect,
+                        RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Connects a new session to WebPush Server, tests replace it with a fake session.
+     */
+    void newSession(final Session.Listener listener, final Promise<Session> promise) {
+        client.connect(sslContextFactory, new InetSocketAddress(host, port), listener, promise);
+    }
+
+    private synchronized PingKeepalive keepalive(final Session session) {
+        return this.session == session ? keepalive : null;
+    }
+
+    public PendingRequest getRequest(final String path, final Listener listener, final HttpFields httpFields) {
+        return sendRequest(GET, path, path, true, true, listener, httpFields, null, Priority.LOW);
     }
 
-    public void getRequest(final String path, final Listener listener, final HttpFields httpFields) {
-        sendRequest(GET, path, listener, httpFields);
+    public PendingRequest postRequest(final String path, final Listener listener) {
+        return sendRequest(POST, path, null, true, false, listener, null, null, Priority.NORMAL);
     }
 
-    public void postRequest(final String path, final Listener listener) {
-        sendRequest(POST, path, listener, null);
+    /**
+     * Sends POST request with body, such as a push message. Header fields and body are taken from the content
+     * every time the stream is opened, so they reflect the time spent in the queues.
+     * The request is accounted to the rate limit of the target resource and is not cached.
+     * It is not sent again on failover once WebPush Server may have processed it.
+     */
+    public PendingRequest postRequest(final String path, final RequestContent content, final Listener listener) {
+        return sendRequest(POST, path, path, false, false, listener, null, content, Priority.NORMAL);
     }
 
-    public void deleteRequest(final String path, final Listener listener) {
-        sendRequest(DELETE, path, listener, null);
+    /**
+     * Sends DELETE request for a resource, such as a subscription resource.
+     * The resource is deleted only once, so the request is not cached.
+     */
+    public PendingRequest deleteRequest(final String path, final Listener listener) {
+        return sendRequest(DELETE, path, path, false, true, listener, null, null, Priority.HIGH);
+    }
+
+    /**
+     * Sends DELETE request for a resource which belongs to another resource, such as a push message resource
+     * of a subscription. The request is accounted to the rate limit of the parent resource and is not cached.
+     */
+    public PendingRequest deleteRequest(final String path, final String resource, final Listener listener) {
+        return sendRequest(DELETE, path, resource, false, true, listener, null, null, Priority.HIGH);
+    }
+
+    private PendingRequest sendRequest(final String method, final String path, final String resource,
+                                       final boolean cacheable, final boolean retryable,
+                                       final Listener responseListener, final HttpFields httpFields,
+                                       final RequestContent content, final Priority priority) {
+        final PendingRequest request;
+        synchronized (this) {
+            request = new PendingRequest(method, path, resource, cacheable, retryable, responseListener, httpFields,
+                    content, priority, requestSequence++);
+            pendingRequests.add(request);
+            sendPendingRequests();
+        }
+        return request;
+    }
+
+    /**
+     * Opens new streams for queued requests while the session has free stream slots and rate limits allow it.
+     * Requests which do not fit stay in the queue until a slot is released or the timer drains the queue.
+     * A request whose subscription resource is over its rate limit is parked, so it does not block other resources.
+     * A request whose content is expired is dropped before it takes any rate limit token.
+     *
+     * Long-lived monitor streams never take the last {@link #reservedStreams()} slots,
+     * so acknowledgements, deletions and push messages can always be sent.
+     * When WebPush Server allows only one stream, long-lived requests are refused.
+     */
+    private synchronized void sendPendingRequests() {
+        while (session != null && activeRequests.size() < maxConcurrentStreams) {
+            final PendingRequest request = pendingRequests.peek();
+            if (request == null) {
+                return;
+            }
+            final long now = System.nanoTime();
+            if (request.content != null && request.content.expired(now)) {
+                pendingRequests.poll();
+                request.content.dropped();
+                continue;
+            }
+            if (request.priority == Priority.LOW && longLivedStreams >= maxConcurrentStreams - reservedStreams()) {
+                //only long-lived requests are left in the queue, they come last
+                if (maxConcurrentStreams <= reservedStreams()) {
+                    refuseLongLivedRequests();
+                }
+                return;
+            }
+            final TokenBucket resourceRateLimit = resourceRateLimit(request.resource);
+            final long resourceDelay = resourceRateLimit != null ? resourceRateLimit.delay(now) : 0;
+            if (resourceDelay > 0) {
+                pendingRequests.poll();
+                defer(request, now, resourceDelay);
+                continue;
+            }
+            final long delay = acquireSessionPermit(now);
+            if (delay > 0) {
+                scheduleDrain(now, delay);
+                return;
+            }
+            pendingRequests.poll();
+            if (resourceRateLimit != null) {
+                resourceRateLimit.take(now);
+            }
+            send(request, now);
+        }
+    }
+
+    /**
+     * Checks Retry-After pause, session and global rate limits and takes their tokens.
+     *
+     * @return {@code 0} if the request can be sent, otherwise nanoseconds to wait.
+     */
+    private long acquireSessionPermit(final long now) {
+        if (paused) {
+            final long delay = pausedUntilNanos - now;
+            if (delay > 0) {
+                return delay;
+            }
+            paused = false;
+        }
+        if (sessionRateLimit != null) {
+            final long delay = sessionRateLimit.delay(now);
+            if (delay > 0) {
+                return delay;
+            }
+        }
+        final TokenBucket globalRateLimit = transport.rateLimit();
+        if (globalRateLimit != null) {
+            final long delay = globalRateLimit.tryAcquire(now);
+            if (delay > 0) {
+                return delay;
+            }
+        }
+        if (sessionRateLimit != null) {
+            sessionRateLimit.take(now);
+        }
+        return 0;
+    }
+
+    /**
+     * Number of stream slots kept for short-lived requests, at least one and at most half of the session limit,
+     * so monitors can still be opened when WebPush Server allows only a few concurrent streams.
+     */
+    private int reservedStreams() {
+        return Math.max(1, Math.min(RESERVED_STREAMS, maxConcurrentStreams / 2));
+    }
+
+    /**
+     * Fails queued long-lived requests which would never get a stream slot. The listeners are notified
+     * on the executor with a {@code null} stream and {@link ErrorCode#REFUSED_STREAM_ERROR}.
+     */
+    private void refuseLongLivedRequests() {
+        PendingRequest request;
+        while ((request = pendingRequests.poll()) != null) {
+            request.cancelled = true;
+            final Listener listener = request.listener;
+            transport.executor().execute(() ->
+                    listener.onReset(null, new ResetFrame(0, ErrorCode.REFUSED_STREAM_ERROR.code)));
+        }
+    }
+
+    /**
+     * Least recently used rate limits of resources, a push resource or a subscription which is no longer used
+     * does not hold its token bucket forever.
+     */
+    private static Map<String, TokenBucket> newResourceRateLimits() {
+        return new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, TokenBucket> eldest) {
+                return size() > RESOURCE_RATE_LIMITS_CAPACITY;
+            }
+        };
+    }
+
+    private TokenBucket resourceRateLimit(final String resource) {
+        if (resource == null || resourceRequestsPerSecond == 0) {
+            return null;
+        }
+        return resourceRateLimits.computeIfAbsent(resource,
+                r -> new TokenBucket(resourceRequestsPerSecond, resourceBurst));
+    }
+
+    private void send(final PendingRequest request, final long now) {
+        HttpFields httpFields = request.httpFields;
+        if (request.content != null) {
+            httpFields = request.content.httpFields(now);
+            request.body = request.content.body();
+        }
+        final TrackingListener attempt = new TrackingListener(request);
+        request.attempt = attempt;
+        activate(request);
+        final HeadersFrame headersFrame = request.cacheable
+                ? requestTemplates.headersFrame(request.method, request.path, httpFields)
+                : requestTemplates.newHeadersFrame(request.method, request.path, httpFields, request.body == null);
+        session.newStream(headersFrame, new Promise<Stream>() {
+
+            @Override
+            public void succeeded(final Stream stream) {
+                streamOpened(request, attempt, stream);
+            }
+
+            @Override
+            public void failed(final Throwable x) {
+                streamFailed(request, attempt);
+            }
+        }, attempt);
+    }
+
+    private void activate(final PendingRequest request) {
+        activeRequests.add(request);
+        if (request.priority == Priority.LOW) {
+            longLivedStreams++;
+        }
+    }
+
+    private void deactivate(final PendingRequest request) {
+        if (activeRequests.remove(request) && request.priority == Priority.LOW) {
+            longLivedStreams--;
+        }
     }
 
-    private void sendRequest(final String method, final String path,
-                             final Listener responseListener, final HttpFields httpFields) {
-        //FIXME be sure that session created
-        Request requestMetaData = new Request(method, new HttpURI(serverUri + path), HttpVersion.HTTP_2, httpFields);
-        HeadersFrame headersFrame = new HeadersFrame(0, requestMetaData, null, true);
-        session.newStream(headersFrame, new Promise.Adapter<>(), responseListener);
+    private void defer(final PendingRequest request, final long now, final long delay) {
+        request.readyAtNanos = now + delay;
+        deferredRequests.add(request);
+        scheduleDrain(now, delay);
+    }
+
+    private void scheduleDrain(final long now, final long delay) {
+        final long deadline = now + delay;
+        if (drainTask != null) {
+            if (drainDeadlineNanos - deadline <= 0) {
+                return; //earlier drain is already scheduled
+            }
+            drainTask.cancel();
+        }
+        drainDeadlineNanos = deadline;
+        drainTask = transport.scheduler().schedule(this::drainTimerExpired, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void drainTimerExpired() {
+        drainTask = null;
+        final long now = System.nanoTime();
+        PendingRequest request;
+        while ((request = deferredRequests.peek()) != null && request.readyAtNanos - now <= 0) {
+            pendingRequests.add(deferredRequests.poll());
+        }
+        if (request != null) {
+            scheduleDrain(now, request.readyAtNanos - now);
+        }
+        sendPendingRequests();
+    }
+
+    private synchronized void streamOpened(final PendingRequest request, final TrackingListener attempt,
+                                           final Stream stream) {
+        if (request.attempt == attempt) {
+            request.stream = stream;
+            if (request.body != null) {
+                stream.data(new DataFrame(stream.getId(), request.body.duplicate(), true), Callback.NOOP);
+            }
+        } else if (request.cancelled) {
+            reset(stream);
+        }
+    }
+
+    private synchronized void cancel(final PendingRequest request) {
+        if (request.cancelled) {
+            return;
+        }
+        request.cancelled = true;
+        if (pendingRequests.remove(request) || deferredRequests.remove(request)) {
+            return; //stream is not opened yet
+        }
+        if (request.attempt != null) {
+            request.attempt = null;
+            deactivate(request);
+            if (request.stream != null) {
+                reset(request.stream);
+                request.stream = null;
+            }
+            sendPendingRequests();
+        }
+    }
+
+    private synchronized void release(final PendingRequest request, final TrackingListener attempt) {
+        if (request.attempt == attempt) {
+            request.attempt = null;
+            deactivate(request);
+            sendPendingRequests();
+        }
+    }
+
+    /**
+     * Parks the request when its stream could not be opened, for example because the session is closing.
+     * HEADERS frame has not reached WebPush Server, so any request can be sent again safely.
+     */
+    private synchronized void streamFailed(final PendingRequest request, final TrackingListener attempt) {
+        if (request.attempt != attempt) {
+            return;
+        }
+        request.attempt = null;
+        request.stream = null;
+        deactivate(request);
+        defer(request, System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(NEW_STREAM_RETRY_DELAY_MILLIS));
+        sendPendingRequests();
+    }
+
+    /**
+     * Handles 429 and 503 responses: pauses the session until the Retry-After delay expires
+     * and parks the request to send it again after the delay.
+     */
+    private synchronized void throttled(final PendingRequest request, final TrackingListener attempt,
+                                        final long delay) {
+        if (request.attempt != attempt) {
+            return;
+        }
+        request.attempt = null;
+        request.stream = null;
+        deactivate(request);
+        final long now = System.nanoTime();
+        if (!paused || pausedUntilNanos - (now + delay) < 0) {
+            paused = true;
+            pausedUntilNanos = now + delay;
+        }
+        defer(request, now, delay);
+        sendPendingRequests();
+    }
+
+    private synchronized void updateMaxConcurrentStreams(final int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        sendPendingRequests();
+    }
+
+    private static void reset(final Stream stream) {
+        stream.reset(new ResetFrame(stream.getId(), ErrorCode.CANCEL_STREAM_ERROR.code), Callback.NOOP);
+    }
+
+    /**
+     * Delay requested by WebPush Server, capped so a misconfigured server cannot pause the client for days.
+     */
+    private static long retryAfterNanos(final HttpFields headers) {
+        final String retryAfter = headers.get("Retry-After");
+        final Long seconds = retryAfter != null ? ParseUtils.parseRetryAfter(retryAfter) : null;
+        return TimeUnit.SECONDS.toNanos(seconds != null
+                ? Math.min(seconds, MAX_RETRY_AFTER_SECONDS)
+                : DEFAULT_RETRY_AFTER_SECONDS);
+    }
+
+    /**
+     * Header fields and body of a request which are resolved every time its stream is opened.
+     * Invoked while {@link JettyHttp2Client} holds its lock, so implementations must not call it back.
+     */
+    interface RequestContent {
+
+        /**
+         * @param nowNanos current time.
+         * @return {@code true} if the request must be dropped instead of being sent.
+         */
+        boolean expired(long nowNanos);
+
+        /**
+         * Invoked when the request is removed from the queue because it is expired.
+         */
+        void dropped();
+
+        /**
+         * @param nowNanos current time, the same which was passed to {@link #expired(long)}.
+         * @return header fields of the request which is sent now.
+         */
+        HttpFields httpFields(long nowNanos);
+
+        /**
+         * @return body which belongs to the header fields returned by the last {@link #httpFields(long)} call.
+         */
+        ByteBuffer body();
+    }
+
+    /**
+     * Order in which queued requests get a free stream slot.
+     */
+    enum Priority {
+        /**
+         * Acknowledgements and deletions, they free resources on WebPush Server and finish quickly.
+         */
+        HIGH,
+        /**
+         * Subscriptions.
+         */
+        NORMAL,
+        /**
+         * New monitors, they hold their stream slot until canceled and never take the reserved slots,
+         * they are refused if WebPush Server allows only one stream.
+         */
+        LOW
+    }
+
+    /**
+     * Request which is either waiting in the admission queue or occupies a stream slot of the session.
+     */
+    final class PendingRequest implements Comparable<PendingRequest> {
+
+        private final String method;
+        private final String path;
+        private final String resource;
+        private final boolean cacheable;
+        private final boolean retryable;
+        private final Listener listener;
+        private final HttpFields httpFields;
+        private final RequestContent content;
+        private final Priority priority;
+        private final long sequence;
+
+        //guarded by JettyHttp2Client.this
+        private ByteBuffer body;
+        private TrackingListener attempt;
+        private Stream stream;
+        private long readyAtNanos;
+        private boolean cancelled;
+
+        private PendingRequest(final String method, final String path, final String resource,
+                               final boolean cacheable, final boolean retryable, final Listener listener,
+                               final HttpFields httpFields, final RequestContent content, final Priority priority,
+                               final long sequence) {
+            this.method = method;
+            this.path = path;
+            this.resource = resource;
+            this.cacheable = cacheable;
+            this.retryable = retryable;
+            this.listener = listener;
+            this.httpFields = httpFields;
+            this.content = content;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Removes the request from the admission queue or resets its stream if it is already opened.
+         */
+        void cancel() {
+            JettyHttp2Client.this.cancel(this);
+        }
+
+        @Override
+        public int compareTo(final PendingRequest that) {
+            final int result = priority.compareTo(that.priority);
+            return result != 0 ? result : Long.compare(sequence, that.sequence);
+        }
+    }
+
+    /**
+     * Releases the stream slot of the request when its stream is finished.
+     * Pushed streams are not tracked, they are initiated by WebPush Server.
+     * Throttled responses are not passed to the request listener, the request is sent again after Retry-After.
+     */
+    private final class TrackingListener extends Listener.Adapter {
+
+        private final PendingRequest request;
+        private boolean throttled;
+
+        private TrackingListener(final PendingRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public void onHeaders(final Stream stream, final HeadersFrame frame) {
+            if (throttled) {
+                return;
+            }
+            final MetaData metaData = frame.getMetaData();
+            if (metaData.isResponse()) {
+                final int status = ((Response) metaData).getStatus();
+                if (status == 429 || status == 503) {
+                    throttled = true;
+                    throttled(request, this, retryAfterNanos(metaData.getFields()));
+                    return;
+                }
+            }
+            try {
+                request.listener.onHeaders(stream, frame);
+            } finally {
+                if (frame.isEndStream()) {
+                    release(request, this);
+                }
+            }
+        }
+
+        @Override
+        public Listener onPush(final Stream stream, final PushPromiseFrame frame) {
+            return throttled ? null : request.listener.onPush(stream, frame);
+        }
+
+        @Override
+        public void onData(final Stream stream, final DataFrame frame, final Callback callback) {
+            if (throttled) {
+                callback.succeeded();
+                return;
+            }
+            try {
+                request.listener.onData(stream, frame, callback);
+            } finally {
+                if (frame.isEndStream()) {
+                    release(request, this);
+                }
+            }
+        }
+
+        @Override
+        public void onReset(final Stream stream, final ResetFrame frame) {
+            if (throttled) {
+                return;
+            }
+            try {
+                request.listener.onReset(stream, frame);
+            } finally {
+                release(request, this);
+            }
+        }
+    }
+
+    private final class SessionListener extends Session.Listener.Adapter {
+
+        @Override
+        public void onSettings(final Session session, final SettingsFrame frame) {
+            final Integer maxConcurrentStreams = frame.getSettings().get(SettingsFrame.MAX_CONCURRENT_STREAMS);
+            if (maxConcurrentStreams != null) {
+                updateMaxConcurrentStreams(maxConcurrentStreams);
+            }
+        }
+
+        @Override
+        public void onPing(final Session session, final PingFrame frame) {
+            final PingKeepalive keepalive = keepalive(session);
+            if (keepalive != null) {
+                keepalive.onPing(frame);
+            }
+        }
+
+        @Override
+        public void onClose(final Session session, final GoAwayFrame frame) {
+            sessionClosed(session, frame.getLastStreamId());
+        }
+
+        @Override
+        public void onFailure(final Session session, final Throwable failure) {
+            sessionClosed(session, -1);
+        }
     }
 }
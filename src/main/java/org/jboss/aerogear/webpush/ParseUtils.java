@@ -16,6 +16,10 @@
  */
 package org.jboss.aerogear.webpush;
 
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 import java.util.Objects;
 import java.util.regex.Matcher;
@@ -47,4 +51,23 @@ final class ParseUtils {
         }
         return null;
     }
+
+    public static Long parseRetryAfter(final String retryAfter) {
+        Objects.requireNonNull(retryAfter, "retryAfter");
+        //delay in seconds or HTTP-date
+        final String value = retryAfter.trim();
+        if (DIGITS.matcher(value).matches()) {
+            try {
+                return Long.valueOf(value);
+            } catch (NumberFormatException e) {
+                return Long.MAX_VALUE; //too many digits
+            }
+        }
+        try {
+            final ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).getSeconds());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
 }
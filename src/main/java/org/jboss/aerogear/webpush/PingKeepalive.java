@@ -0,0 +1,120 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.frames.PingFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends HTTP/2 PING frames on a session with a fixed interval.
+ * A PING which is not answered until the next one is due counts as missed,
+ * after {@code maxMissedPings} missed PINGs in a row the session is declared dead.
+ */
+final class PingKeepalive implements Runnable {
+
+    private final Session session;
+    private final Scheduler scheduler;
+    private final long intervalMillis;
+    private final int maxMissedPings;
+    private final RoundTripHistogram histogram;
+    private final Runnable deadSessionHandler;
+
+    //guarded by this
+    private long lastPingNanos;
+    private boolean awaitingReply;
+    private int missedPings;
+    private boolean stopped;
+    private Scheduler.Task task;
+
+    PingKeepalive(final Session session,
+                  final Scheduler scheduler,
+                  final long intervalMillis,
+                  final int maxMissedPings,
+                  final RoundTripHistogram histogram,
+                  final Runnable deadSessionHandler) {
+        this.session = session;
+        this.scheduler = scheduler;
+        this.intervalMillis = intervalMillis;
+        this.maxMissedPings = maxMissedPings;
+        this.histogram = histogram;
+        this.deadSessionHandler = deadSessionHandler;
+    }
+
+    synchronized void start() {
+        task = scheduler.schedule(this, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    @Override
+    public void run() {
+        final boolean dead;
+        long pingNanos = 0;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            dead = awaitingReply && ++missedPings >= maxMissedPings;
+            if (dead) {
+                stopped = true;
+            } else {
+                pingNanos = System.nanoTime();
+                lastPingNanos = pingNanos;
+                awaitingReply = true;
+                task = scheduler.schedule(this, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (dead) {
+            deadSessionHandler.run();
+            return;
+        }
+        final byte[] payload = ByteBuffer.allocate(Long.BYTES).putLong(pingNanos).array();
+        session.ping(new PingFrame(payload, false), Callback.NOOP);
+    }
+
+    /**
+     * Handles PING reply. A late reply to one of the previous PINGs also proves that the connection is alive.
+     *
+     * @param frame PING frame with reply flag received from WebPush Server.
+     */
+    void onPing(final PingFrame frame) {
+        if (!frame.isReply()) {
+            return;
+        }
+        final long pingNanos = ByteBuffer.wrap(frame.getPayload()).getLong();
+        synchronized (this) {
+            if (pingNanos - lastPingNanos > 0) {
+                return; //unknown payload
+            }
+            if (pingNanos == lastPingNanos) {
+                awaitingReply = false;
+            }
+            missedPings = 0;
+        }
+        histogram.record(System.nanoTime() - pingNanos);
+    }
+}
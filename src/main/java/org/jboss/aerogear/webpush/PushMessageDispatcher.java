@@ -0,0 +1,231 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Delivers push messages of one subscription to several consumers through a preallocated ring buffer.
+ *
+ * Every consumer has its own sequence and runs on the executor, so a slow consumer does not delay the others.
+ * A push message is acknowledged when all consumers, or the configured quorum of them, have processed it.
+ * When the ring buffer wraps around a consumer which has not processed the overwritten message yet,
+ * the consumer is reported as slow and skips the messages it has missed.
+ */
+final class PushMessageDispatcher {
+
+    private final Object[] entries;
+    private final long[] sequences;
+    private final int[] required;
+    private final int[] processed;
+    private final int mask;
+    private final int quorum;
+    private final Executor executor;
+    private final Consumer<PushMessage> acknowledger;
+    private final Consumer<Consumer<Optional<PushMessage>>> slowConsumerHandler;
+
+    //guarded by this
+    private final List<Cursor> cursors = new ArrayList<>();
+    private long published;
+
+    /**
+     * @param bufferSize          size of the ring buffer, must be a power of two.
+     * @param quorum              number of consumers which have to process a message before it is acknowledged,
+     *                            {@code 0} means all consumers.
+     * @param executor            runs consumers.
+     * @param acknowledger        acknowledges a push message on WebPush Server.
+     * @param slowConsumerHandler is notified when a consumer misses messages.
+     */
+    PushMessageDispatcher(final int bufferSize,
+                          final int quorum,
+                          final Executor executor,
+                          final Consumer<PushMessage> acknowledger,
+                          final Consumer<Consumer<Optional<PushMessage>>> slowConsumerHandler) {
+        if (bufferSize < 1 || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("bufferSize must be a power of two, current value: " + bufferSize);
+        }
+        if (quorum < 0) {
+            throw new IllegalArgumentException("quorum must not be negative, current value: " + quorum);
+        }
+        entries = new Object[bufferSize];
+        sequences = new long[bufferSize];
+        required = new int[bufferSize];
+        processed = new int[bufferSize];
+        mask = bufferSize - 1;
+        this.quorum = quorum;
+        this.executor = executor;
+        this.acknowledger = acknowledger;
+        this.slowConsumerHandler = slowConsumerHandler;
+    }
+
+    /**
+     * Registers consumer, it receives messages published after the registration.
+     *
+     * @return {@code false} if the consumer is already registered.
+     */
+    synchronized boolean addConsumer(final Consumer<Optional<PushMessage>> consumer) {
+        if (find(consumer) != null) {
+            return false;
+        }
+        cursors.add(new Cursor(consumer, published));
+        return true;
+    }
+
+    /**
+     * Unregisters consumer, messages which it has not processed yet no longer wait for it to be acknowledged.
+     *
+     * @return {@code false} if the consumer is not registered.
+     */
+    boolean removeConsumer(final Consumer<Optional<PushMessage>> consumer) {
+        final List<PushMessage> acknowledged = new ArrayList<>(0);
+        synchronized (this) {
+            final Cursor cursor = find(consumer);
+            if (cursor == null) {
+                return false;
+            }
+            cursors.remove(cursor);
+            cursor.removed = true;
+            skip(cursor, published, acknowledged);
+        }
+        acknowledged.forEach(acknowledger);
+        return true;
+    }
+
+    synchronized boolean hasConsumers() {
+        return !cursors.isEmpty();
+    }
+
+    void publish(final Optional<PushMessage> message) {
+        final List<PushMessage> acknowledged = new ArrayList<>(0);
+        final List<Cursor> slowCursors = new ArrayList<>(0);
+        final List<Cursor> idleCursors = new ArrayList<>();
+        synchronized (this) {
+            final long sequence = published;
+            final long overwritten = sequence - entries.length;
+            for (final Cursor cursor : cursors) {
+                if (cursor.sequence <= overwritten) {
+                    skip(cursor, overwritten + 1, acknowledged);
+                    slowCursors.add(cursor);
+                }
+            }
+            final int slot = (int) (sequence & mask);
+            entries[slot] = message;
+            sequences[slot] = sequence;
+            processed[slot] = 0;
+            required[slot] = quorum == 0 ? cursors.size() : Math.min(quorum, cursors.size());
+            published++;
+            if (required[slot] == 0 && message.isPresent()) {
+                acknowledged.add(message.get());
+            }
+            for (final Cursor cursor : cursors) {
+                if (!cursor.scheduled) {
+                    cursor.scheduled = true;
+                    idleCursors.add(cursor);
+                }
+            }
+        }
+        acknowledged.forEach(acknowledger);
+        for (final Cursor cursor : slowCursors) {
+            slowConsumerHandler.accept(cursor.consumer);
+        }
+        idleCursors.forEach(executor::execute);
+    }
+
+    private Cursor find(final Consumer<Optional<PushMessage>> consumer) {
+        for (final Cursor cursor : cursors) {
+            if (cursor.consumer == consumer) {
+                return cursor;
+            }
+        }
+        return null;
+    }
+
+    private void skip(final Cursor cursor, final long sequence, final List<PushMessage> acknowledged) {
+        for (long s = cursor.sequence; s < sequence; s++) {
+            markProcessed(s, acknowledged);
+        }
+        cursor.sequence = sequence;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Optional<PushMessage> entry(final long sequence) {
+        return (Optional<PushMessage>) entries[(int) (sequence & mask)];
+    }
+
+    private void markProcessed(final long sequence, final List<PushMessage> acknowledged) {
+        final int slot = (int) (sequence & mask);
+        if (sequences[slot] != sequence) {
+            return; //already overwritten
+        }
+        if (++processed[slot] == required[slot]) {
+            final Optional<PushMessage> message = entry(sequence);
+            if (message.isPresent()) {
+                acknowledged.add(message.get());
+            }
+        }
+    }
+
+    private final class Cursor implements Runnable {
+
+        private final Consumer<Optional<PushMessage>> consumer;
+
+        //guarded by PushMessageDispatcher.this
+        private long sequence;
+        private boolean scheduled;
+        private boolean removed;
+
+        private Cursor(final Consumer<Optional<PushMessage>> consumer, final long sequence) {
+            this.consumer = consumer;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            final List<PushMessage> acknowledged = new ArrayList<>(1);
+            while (true) {
+                final long current;
+                final Optional<PushMessage> message;
+                synchronized (PushMessageDispatcher.this) {
+                    if (removed || sequence == published) {
+                        scheduled = false;
+                        return;
+                    }
+                    current = sequence;
+                    message = entry(current);
+                }
+                try {
+                    consumer.accept(message);
+                } catch (RuntimeException e) {
+                    final Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+                synchronized (PushMessageDispatcher.this) {
+                    if (sequence == current) { //not skipped meanwhile
+                        sequence++;
+                        markProcessed(current, acknowledged);
+                    }
+                }
+                acknowledged.forEach(acknowledger);
+                acknowledged.clear();
+            }
+        }
+    }
+}
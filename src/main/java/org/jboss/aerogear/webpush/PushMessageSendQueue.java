@@ -0,0 +1,239 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http.HttpFields;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of outgoing push messages which limits the number of push messages in flight.
+ *
+ * Until the stream of a push message is opened, also while it waits in the queues of {@link JettyHttp2Client}:
+ * <ul>
+ *     <li>a newer push message for the same push resource and topic replaces it,</li>
+ *     <li>it is dropped when its TTL expires,</li>
+ *     <li>push messages with higher urgency overtake it, as long as it waits in this queue.</li>
+ * </ul>
+ * The {@code TTL} header field is computed when the stream is opened, so it holds the TTL which is left.
+ */
+final class PushMessageSendQueue {
+
+    /**
+     * Push message with TTL {@code 0} is dropped unless its stream is opened within this time.
+     */
+    private static final long IMMEDIATE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final JettyHttp2Client http2Client;
+    private final int maxInFlight;
+
+    //guarded by this
+    private final Queue<Entry> queue = new PriorityQueue<>();
+    private final Map<String, Entry> topics = new HashMap<>();
+    private long sequence;
+    private int inFlight;
+
+    PushMessageSendQueue(final JettyHttp2Client http2Client, final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive, current value: " + maxInFlight);
+        }
+        this.http2Client = http2Client;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param ttlSeconds TTL in seconds, {@code 0} means that the push message is delivered only if it is sent
+     *                   immediately.
+     */
+    void offer(final String pushResource, final String data, final long ttlSeconds, final Urgency urgency,
+               final String topic) {
+        final long now = System.nanoTime();
+        synchronized (this) {
+            final String topicKey = topic != null ? pushResource + ' ' + topic : null;
+            final Entry pending = topicKey != null ? topics.get(topicKey) : null;
+            if (pending != null) {
+                //replaced push message keeps its place among push messages of the same urgency,
+                //if it is already passed to the HTTP/2 client, the new content is sent when its stream is opened
+                final boolean queued = queue.remove(pending);
+                pending.replace(data, ttlSeconds, urgency, now);
+                if (queued) {
+                    queue.add(pending);
+                }
+                return;
+            }
+            final Entry entry = new Entry(pushResource, data, ttlSeconds, urgency, topic, topicKey, now, sequence++);
+            queue.add(entry);
+            if (topicKey != null) {
+                topics.put(topicKey, entry);
+            }
+        }
+        send();
+    }
+
+    private void send() {
+        final List<Entry> entries = new ArrayList<>();
+        final long now = System.nanoTime();
+        synchronized (this) {
+            while (inFlight < maxInFlight && !queue.isEmpty()) {
+                final Entry entry = queue.poll();
+                if (entry.remainingTtlSeconds(now) < 0) {
+                    entry.removeTopic();
+                    continue; //expired
+                }
+                inFlight++;
+                entries.add(entry);
+            }
+        }
+        for (final Entry entry : entries) {
+            http2Client.postRequest(entry.pushResource, entry, new CompletionListener(this::completed));
+        }
+    }
+
+    /**
+     * Drops queued push messages, push messages in flight are abandoned together with their session.
+     */
+    synchronized void clear() {
+        queue.clear();
+        topics.clear();
+        inFlight = 0;
+    }
+
+    private void completed() {
+        synchronized (this) {
+            inFlight = Math.max(0, inFlight - 1);
+        }
+        send();
+    }
+
+    /**
+     * Push message which is replaceable until its stream is opened.
+     */
+    private final class Entry implements Comparable<Entry>, JettyHttp2Client.RequestContent {
+
+        private final String pushResource;
+        private final String topic;
+        private final String topicKey;
+        private final long sequence;
+
+        //guarded by PushMessageSendQueue.this
+        private String data;
+        private long ttlSeconds;
+        private Urgency urgency;
+        private long enqueuedNanos;
+        private ByteBuffer body;
+
+        private Entry(final String pushResource, final String data, final long ttlSeconds, final Urgency urgency,
+                      final String topic, final String topicKey, final long enqueuedNanos, final long sequence) {
+            this.pushResource = pushResource;
+            this.data = data;
+            this.ttlSeconds = ttlSeconds;
+            this.urgency = urgency;
+            this.topic = topic;
+            this.topicKey = topicKey;
+            this.enqueuedNanos = enqueuedNanos;
+            this.sequence = sequence;
+        }
+
+        private void replace(final String data, final long ttlSeconds, final Urgency urgency,
+                             final long enqueuedNanos) {
+            this.data = data;
+            this.ttlSeconds = ttlSeconds;
+            this.urgency = urgency;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+
+        private void removeTopic() {
+            if (topicKey != null && topics.get(topicKey) == this) {
+                topics.remove(topicKey);
+            }
+        }
+
+        /**
+         * TTL which is left after waiting in the queues, negative if the push message is expired.
+         */
+        private long remainingTtlSeconds(final long nowNanos) {
+            final long queuedNanos = nowNanos - enqueuedNanos;
+            if (ttlSeconds == 0) {
+                return queuedNanos < IMMEDIATE_NANOS ? 0 : -1;
+            }
+            if (queuedNanos >= TimeUnit.SECONDS.toNanos(ttlSeconds)) {
+                return -1;
+            }
+            return ttlSeconds - TimeUnit.NANOSECONDS.toSeconds(queuedNanos);
+        }
+
+        @Override
+        public boolean expired(final long nowNanos) {
+            synchronized (PushMessageSendQueue.this) {
+                return remainingTtlSeconds(nowNanos) < 0;
+            }
+        }
+
+        /**
+         * An expired push message frees its place in flight, the next push message is sent on another thread
+         * because the HTTP/2 client holds its lock.
+         */
+        @Override
+        public void dropped() {
+            synchronized (PushMessageSendQueue.this) {
+                removeTopic();
+                inFlight = Math.max(0, inFlight - 1);
+            }
+            http2Client.executor().execute(PushMessageSendQueue.this::send);
+        }
+
+        /**
+         * Invoked by {@link JettyHttp2Client} when the stream is opened, after this call the push message
+         * can no longer be replaced.
+         */
+        @Override
+        public HttpFields httpFields(final long nowNanos) {
+            synchronized (PushMessageSendQueue.this) {
+                removeTopic();
+                final HttpFields httpFields = new HttpFields();
+                httpFields.add("TTL", String.valueOf(Math.max(0, remainingTtlSeconds(nowNanos))));
+                httpFields.add(urgency.httpField());
+                if (topic != null) {
+                    httpFields.add("Topic", topic);
+                }
+                body = ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+                return httpFields;
+            }
+        }
+
+        @Override
+        public ByteBuffer body() {
+            synchronized (PushMessageSendQueue.this) {
+                return body;
+            }
+        }
+
+        @Override
+        public int compareTo(final Entry that) {
+            final int result = that.urgency.compareTo(urgency);
+            return result != 0 ? result : Long.compare(sequence, that.sequence);
+        }
+    }
+}
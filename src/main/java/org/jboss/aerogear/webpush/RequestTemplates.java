@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData.Request;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Least recently used cache of immutable request HEADERS frames for resources which are requested repeatedly,
+ * such as subscription resources. Jetty copies the frame with the new stream id when the stream is opened,
+ * so one frame can be shared by all requests for the same method, path and header fields.
+ * Requests which are not repeated, such as acknowledgements, still build their URI and frame every time.
+ *
+ * Not thread-safe, guarded by {@link JettyHttp2Client}.
+ */
+final class RequestTemplates {
+
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final Map<String, Template> templates;
+
+    RequestTemplates(final String scheme, final String host, final int port, final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive, current value: " + capacity);
+        }
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Template> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns cached HEADERS frame or creates and caches a new one.
+     *
+     * @param httpFields header fields, compared by identity, so they must be shared constants.
+     */
+    HeadersFrame headersFrame(final String method, final String path, final HttpFields httpFields) {
+        Template template = templates.get(path);
+        if (template == null) {
+            template = new Template(new HttpURI(scheme, host, port, path));
+            templates.put(path, template);
+        }
+        return template.headersFrame(method, httpFields);
+    }
+
+    /**
+     * Creates HEADERS frame for a request which is not repeated, such as an acknowledgement of a push message.
+     *
+     * @param endStream {@code false} if DATA frame with request body follows.
+     */
+    HeadersFrame newHeadersFrame(final String method, final String path, final HttpFields httpFields,
+                                 final boolean endStream) {
+        return newHeadersFrame(method, new HttpURI(scheme, host, port, path), httpFields, endStream);
+    }
+
+    void remove(final String path) {
+        templates.remove(path);
+    }
+
+    private static HeadersFrame newHeadersFrame(final String method, final HttpURI uri, final HttpFields httpFields,
+                                                final boolean endStream) {
+        final Request requestMetaData = new Request(method, uri, HttpVersion.HTTP_2, httpFields);
+        return new HeadersFrame(0, requestMetaData, null, endStream);
+    }
+
+    private static final class Template {
+
+        private final HttpURI uri;
+        private final List<HeadersFrame> headersFrames = new ArrayList<>(2);
+
+        private Template(final HttpURI uri) {
+            this.uri = uri;
+        }
+
+        private HeadersFrame headersFrame(final String method, final HttpFields httpFields) {
+            for (int i = 0; i < headersFrames.size(); i++) {
+                final HeadersFrame headersFrame = headersFrames.get(i);
+                final Request request = (Request) headersFrame.getMetaData();
+                if (request.getFields() == httpFields && request.getMethod().equals(method)) {
+                    return headersFrame;
+                }
+            }
+            final HeadersFrame headersFrame = newHeadersFrame(method, uri, httpFields, true);
+            headersFrames.add(headersFrame);
+            return headersFrame;
+        }
+    }
+}
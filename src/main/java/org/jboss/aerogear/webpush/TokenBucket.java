@@ -0,0 +1,90 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket which limits the rate of outbound requests, one token per request.
+ * All times are {@link System#nanoTime()} values.
+ */
+final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+
+    //guarded by this
+    private double tokens;
+    private long refilledNanos;
+
+    TokenBucket(final double requestsPerSecond, final int burst) {
+        validate(requestsPerSecond, burst);
+        tokensPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        capacity = burst;
+        tokens = burst;
+        refilledNanos = System.nanoTime();
+    }
+
+    /**
+     * Checks arguments of a token bucket which is created later.
+     */
+    static void validate(final double requestsPerSecond, final int burst) {
+        if (!(requestsPerSecond > 0)) {
+            throw new IllegalArgumentException("requestsPerSecond must be positive, current value: "
+                    + requestsPerSecond);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be positive, current value: " + burst);
+        }
+    }
+
+    /**
+     * @param nowNanos current time.
+     * @return nanoseconds until a token is available, {@code 0} if it is available now.
+     */
+    synchronized long delay(final long nowNanos) {
+        refill(nowNanos);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    synchronized void take(final long nowNanos) {
+        refill(nowNanos);
+        tokens -= 1;
+    }
+
+    /**
+     * Takes a token if it is available.
+     *
+     * @param nowNanos current time.
+     * @return {@code 0} if the token is taken, otherwise nanoseconds until a token is available.
+     */
+    synchronized long tryAcquire(final long nowNanos) {
+        final long delay = delay(nowNanos);
+        if (delay == 0) {
+            tokens -= 1;
+        }
+        return delay;
+    }
+
+    private void refill(final long nowNanos) {
+        final long elapsed = nowNanos - refilledNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+            refilledNanos = nowNanos;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.PreEncodedHttpField;
+
+/**
+ * Urgency of a push message, it is sent in the {@code Urgency} header field.
+ * Queued push messages with higher urgency are sent first, see
+ * {@link WebPushClient#sendMessage(String, String, java.time.Duration, Urgency, String)}.
+ */
+public enum Urgency {
+
+    VERY_LOW("very-low"),
+    LOW("low"),
+    NORMAL("normal"),
+    HIGH("high");
+
+    private final HttpField httpField;
+
+    Urgency(final String value) {
+        httpField = new PreEncodedHttpField("Urgency", value);
+    }
+
+    HttpField httpField() {
+        return httpField;
+    }
+}
@@ -20,24 +20,29 @@ import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.MetaData.Request;
 import org.eclipse.jetty.http.MetaData.Response;
+import org.eclipse.jetty.http.PreEncodedHttpField;
 import org.eclipse.jetty.http2.api.Stream;
 import org.eclipse.jetty.http2.api.Stream.Listener;
 import org.eclipse.jetty.http2.frames.DataFrame;
 import org.eclipse.jetty.http2.frames.HeadersFrame;
 import org.eclipse.jetty.http2.frames.PushPromiseFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
 import org.eclipse.jetty.util.Callback;
 
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 /**
  * Asynchronous HTTP/2 client for
@@ -52,11 +57,11 @@ import java.util.function.Consumer;
  *             webPushClient.monitor(subscription, true, pushMessage -> {   //monitor without waiting of new messages
  *                 if (pushMessage.isPresent()) {
  *                     System.out.println(pushMessage.get());   //handle push message
- *                 } else {    //possible only if nowait == true
+ *                 } else {    //possible only if nowait == true, the monitor stream is finished
  *                     System.out.println("204 No Content");    //there are no new messages on the WebPush Server
+ *                     webPushClient.monitor(subscription, System.out::println);    //monitor all new push messages
  *                 }
  *             });
- *             webPushClient.monitor(subscription, System.out::println);    //monitor all new push messages
  *         });
  *     } finally {
  *         webPushClient.disconnect();  //disconnect from the WebPush Server
@@ -66,23 +71,29 @@ import java.util.function.Consumer;
 public class WebPushClient {
 
     private static final HttpFields HTTP_FIELDS_WITH_PREFER_HEADER;
+    private static final int DISPATCHER_BUFFER_SIZE = 256;
+    private static final int MAX_IN_FLIGHT_PUSH_MESSAGES = 16;
+    private static final Pattern TOPIC_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,32}");
 
     static {
         HTTP_FIELDS_WITH_PREFER_HEADER = new HttpFields();
-        HTTP_FIELDS_WITH_PREFER_HEADER.add("prefer", "wait=0");
+        HTTP_FIELDS_WITH_PREFER_HEADER.add(new PreEncodedHttpField("prefer", "wait=0"));
     }
 
-    private final ConcurrentMap<Subscription, Consumer<Optional<PushMessage>>> monitoredSubscriptions
-            = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Subscription, Monitor> monitoredSubscriptions = new ConcurrentHashMap<>();
 
     private final JettyHttp2Client http2Client;
+    private final PushMessageSendQueue sendQueue;
+
+    private volatile int acknowledgeQuorum;
+    private volatile BiConsumer<Subscription, Consumer<Optional<PushMessage>>> slowConsumerHandler;
 
     /**
      * Creates WebPush client which will work with local WebPush Server on port 8443
      * and will blindly trust all SSL certificates.
      */
     public WebPushClient() {
-        http2Client = new JettyHttp2Client("localhost", 8443, true);
+        this("localhost", 8443, true);
     }
 
     /**
@@ -92,9 +103,21 @@ public class WebPushClient {
      * @param trustAll         whether to blindly trust all certificates.
      */
     public WebPushClient(final String webPushServerURI, final boolean trustAll) {
+        this(webPushServerURI, new WebPushTransport(trustAll));
+    }
+
+    /**
+     * Creates WebPush client which will work with your WebPush Server
+     * and share threads and SSL context of the specified transport with other clients.
+     *
+     * @param webPushServerURI URI for your WebPush Server, example: {@code https://localhost:8443}.
+     * @param transport        transport shared by WebPush clients.
+     */
+    public WebPushClient(final String webPushServerURI, final WebPushTransport transport) {
         Objects.requireNonNull(webPushServerURI, "webPushServerURI");
         final URI uri = URI.create(webPushServerURI);
-        http2Client = new JettyHttp2Client(uri.getHost(), uri.getPort(), trustAll);
+        http2Client = new JettyHttp2Client(uri.getHost(), uri.getPort(), transport);
+        sendQueue = new PushMessageSendQueue(http2Client, MAX_IN_FLIGHT_PUSH_MESSAGES);
     }
 
     /**
@@ -105,7 +128,99 @@ public class WebPushClient {
      * @param trustAll whether to blindly trust all certificates.
      */
     public WebPushClient(final String host, final int port, final boolean trustAll) {
-        http2Client = new JettyHttp2Client(host, port, trustAll);
+        this(host, port, new WebPushTransport(trustAll));
+    }
+
+    /**
+     * Creates WebPush client which will work with your WebPush Server
+     * and share threads and SSL context of the specified transport with other clients.
+     *
+     * @param host      host for your WebPush Server.
+     * @param port      port for your WebPush Server.
+     * @param transport transport shared by WebPush clients.
+     */
+    public WebPushClient(final String host, final int port, final WebPushTransport transport) {
+        this(new JettyHttp2Client(host, port, transport));
+    }
+
+    WebPushClient(final JettyHttp2Client http2Client) {
+        this.http2Client = http2Client;
+        sendQueue = new PushMessageSendQueue(http2Client, MAX_IN_FLIGHT_PUSH_MESSAGES);
+    }
+
+    /**
+     * Configures HTTP/2 PING keepalive, by default a PING is sent every 5 seconds
+     * and the connection is declared dead after 3 missed PINGs.
+     * When the connection is dead, the client connects to WebPush Server again and resends active monitors.
+     *
+     * This method has to be invoked before {@link #connect()}.
+     *
+     * @param pingInterval   interval between PINGs, {@link Duration#ZERO} disables keepalive.
+     * @param maxMissedPings number of missed PINGs in a row after which the connection is declared dead.
+     */
+    public void keepalive(final Duration pingInterval, final int maxMissedPings) {
+        Objects.requireNonNull(pingInterval, "pingInterval");
+        http2Client.keepalive(pingInterval.toMillis(), maxMissedPings);
+    }
+
+    /**
+     * Limits the rate of requests sent by this client.
+     * Requests over the limit are queued and sent as soon as the limit allows it.
+     *
+     * Independently of this limit, when WebPush Server responds with {@code 429 Too Many Requests}
+     * or {@code 503 Service Unavailable}, the client pauses sending for the {@code Retry-After} delay
+     * and repeats the request afterwards.
+     *
+     * @param requestsPerSecond sustained rate of requests.
+     * @param burst             maximum number of requests sent at once after an idle period.
+     */
+    public void rateLimit(final double requestsPerSecond, final int burst) {
+        http2Client.rateLimit(requestsPerSecond, burst);
+    }
+
+    /**
+     * Limits the rate of requests sent for each subscription, such as monitors and acknowledgements.
+     *
+     * @param requestsPerSecond sustained rate of requests per subscription.
+     * @param burst             maximum number of requests per subscription sent at once after an idle period.
+     */
+    public void subscriptionRateLimit(final double requestsPerSecond, final int burst) {
+        http2Client.resourceRateLimit(requestsPerSecond, burst);
+    }
+
+    /**
+     * Sets the number of consumers of a subscription which have to process a push message
+     * before it is acknowledged on WebPush Server. By default all consumers have to process it.
+     *
+     * This method affects subscriptions which are monitored after its invocation.
+     *
+     * @param quorum number of consumers, {@code 0} means all consumers.
+     */
+    public void acknowledgeQuorum(final int quorum) {
+        if (quorum < 0) {
+            throw new IllegalArgumentException("quorum must not be negative, current value: " + quorum);
+        }
+        acknowledgeQuorum = quorum;
+    }
+
+    /**
+     * Sets handler which is invoked when a consumer of a subscription falls behind
+     * the received push messages by more than 256 messages. The slow consumer skips the messages it has missed.
+     *
+     * @param handler receives the subscription and the slow consumer.
+     */
+    public void slowConsumerHandler(final BiConsumer<Subscription, Consumer<Optional<PushMessage>>> handler) {
+        slowConsumerHandler = handler;
+    }
+
+    /**
+     * Round-trip time of HTTP/2 PINGs measured by keepalive, see {@link #keepalive(Duration, int)}.
+     *
+     * @param percentile value between 0 and 100, for example {@code 99} for 99th percentile.
+     * @return round-trip time or {@link Duration#ZERO} if no PING reply is received yet.
+     */
+    public Duration pingRoundTripTime(final double percentile) {
+        return http2Client.pingRoundTripTimes().percentile(percentile);
     }
 
     /**
@@ -120,11 +235,14 @@ public class WebPushClient {
 
     /**
      * Disconnects from the server.
-     * This method has to be invoked manually to free connection resources.
+     * This method has to be invoked manually to free connection resources,
+     * the transport is stopped when its last client is disconnected.
+     * It can be invoked from a push message consumer, the transport is then stopped on another thread.
      *
      * @throws Exception if something goes wrong.
      */
     public void disconnect() throws Exception {
+        sendQueue.clear();
         http2Client.disconnect();
     }
 
@@ -163,24 +281,83 @@ public class WebPushClient {
         });
     }
 
+    /**
+     * Sends push message with {@link Urgency#NORMAL} urgency and without topic.
+     *
+     * @param pushResource push resource of a subscription, see {@link Subscription#pushResource()}.
+     * @param data         payload of the push message.
+     * @param ttl          how long WebPush Server should keep the push message if it can not be delivered.
+     */
+    public void sendMessage(final String pushResource, final String data, final Duration ttl) {
+        sendMessage(pushResource, data, ttl, Urgency.NORMAL, null);
+    }
+
+    /**
+     * Sends push message to a push resource, see
+     * <a href="https://tools.ietf.org/html/draft-thomson-webpush-protocol-00#section-5">Section 5:
+     * Requesting Push Message Delivery</a> of WebPush protocol specification.
+     *
+     * Only a limited number of push messages is sent at once, the others wait in a queue where push messages
+     * with higher urgency go first. Until it is sent, a push message is replaced by a newer one with the same
+     * push resource and topic, and is dropped when its TTL expires. The {@code TTL} header field holds the TTL
+     * left after waiting in the queue.
+     *
+     * @param pushResource push resource of a subscription, see {@link Subscription#pushResource()}.
+     * @param data         payload of the push message.
+     * @param ttl          how long WebPush Server should keep the push message if it can not be delivered,
+     *                     rounded up to whole seconds. {@link Duration#ZERO} means that the push message
+     *                     is dropped unless it can be sent immediately.
+     * @param urgency      urgency of the push message.
+     * @param topic        topic of the push message, may be {@code null}. It must have at most 32 characters
+     *                     from the URL and filename safe base64 alphabet, see
+     *                     <a href="https://tools.ietf.org/html/rfc8030#section-5.4">Section 5.4</a> of RFC 8030.
+     */
+    public void sendMessage(final String pushResource,
+                            final String data,
+                            final Duration ttl,
+                            final Urgency urgency,
+                            final String topic) {
+        Objects.requireNonNull(pushResource, "pushResource");
+        Objects.requireNonNull(data, "data");
+        Objects.requireNonNull(ttl, "ttl");
+        Objects.requireNonNull(urgency, "urgency");
+        if (ttl.isNegative()) {
+            throw new IllegalArgumentException("ttl must not be negative, current value: " + ttl);
+        }
+        if (topic != null && !TOPIC_PATTERN.matcher(topic).matches()) {
+            throw new IllegalArgumentException("topic must have at most 32 characters of URL-safe base64 alphabet, "
+                    + "current value: " + topic);
+        }
+        final long ttlSeconds = ttl.getNano() > 0 ? ttl.getSeconds() + 1 : ttl.getSeconds();
+        sendQueue.offer(pushResource, data, ttlSeconds, urgency, topic);
+    }
+
     /**
      * Removes specified subscription from the WebPush Server, see
      * <a href="https://tools.ietf.org/html/draft-thomson-webpush-protocol-00#section-7.3">Section 7.3:
      * Subscription Expiration</a> of WebPush protocol specification.
      *
-     * This method also invoked {@link #cancelMonitoring(Subscription)} for the specified subscription.
+     * This method also invoked {@link #cancelMonitoring(Subscription)} for the specified subscription,
+     * so the monitor stream is reset before the subscription is deleted.
      *
      * @param subscription which will be removed.
      */
     public void deleteSubscription(final Subscription subscription) {
         Objects.requireNonNull(subscription, "subscription");
         cancelMonitoring(subscription);
-        http2Client.deleteRequest(subscription.subscriptionResource(), new Listener.Adapter());
+        final String subscriptionResource = subscription.subscriptionResource();
+        //cached state is dropped only when the DELETE is done, sending it would otherwise create the state again
+        http2Client.deleteRequest(subscriptionResource,
+                new CompletionListener(() -> http2Client.forgetResource(subscriptionResource)));
     }
 
     /**
      * Enables monitoring of new push messages.
      *
+     * A subscription can be monitored by several consumers, each of them receives every new push message
+     * on a thread of the transport. A push message is acknowledged when all consumers have processed it,
+     * see {@link #acknowledgeQuorum(int)}.
+     *
      * This method implements
      * <a href="https://tools.ietf.org/html/draft-thomson-webpush-protocol-00#section-6">Section 6:
      * Receiving Push Messages</a> of WebPush protocol specification.
@@ -195,6 +372,9 @@ public class WebPushClient {
     /**
      * Enables monitoring of new push messages.
      * Allows to specify a {@code Prefer} header field with a "wait" parameter set to "0".
+     * If the subscription is already monitored, the consumer is added to its consumers and {@code nowait} is ignored.
+     * Monitoring ends when WebPush Server finishes the monitor stream, for example with {@code 204 No Content}
+     * if {@code nowait} is set, the next invocation of this method then opens a new monitor stream.
      *
      * This method implements
      * <a href="https://tools.ietf.org/html/draft-thomson-webpush-protocol-00#section-6">Section 6:
@@ -209,75 +389,178 @@ public class WebPushClient {
                         final Consumer<Optional<PushMessage>> consumer) {
         Objects.requireNonNull(subscription, "subscription");
         Objects.requireNonNull(consumer, "pushMessageConsumer");
-        final Consumer<Optional<PushMessage>> prevConsumer = monitoredSubscriptions.putIfAbsent(subscription, consumer);
-        if (prevConsumer != null) {
-            return; //this subscription has already monitored
+        final Monitor[] created = new Monitor[1];
+        monitoredSubscriptions.compute(subscription, (s, monitor) -> {
+            if (monitor == null) {
+                monitor = created[0] = new Monitor(newDispatcher(s));
+            }
+            monitor.dispatcher.addConsumer(consumer);
+            return monitor;
+        });
+        if (created[0] != null) {
+            //the request is sent outside of the map update, the monitor may be canceled meanwhile
+            created[0].start(newMonitorRequest(subscription, nowait, created[0]));
         }
-        http2Client.getRequest(subscription.subscriptionResource(), new Listener.Adapter() {
+    }
+
+    private PushMessageDispatcher newDispatcher(final Subscription subscription) {
+        return new PushMessageDispatcher(DISPATCHER_BUFFER_SIZE, acknowledgeQuorum,
+                http2Client.executor(),
+                pushMessage -> acknowledge(subscription, pushMessage),
+                slowConsumer -> {
+                    final BiConsumer<Subscription, Consumer<Optional<PushMessage>>> handler = slowConsumerHandler;
+                    if (handler != null) {
+                        handler.accept(subscription, slowConsumer);
+                    }
+                });
+    }
 
-            private PushMessage.Builder builder;
+    private JettyHttp2Client.PendingRequest newMonitorRequest(final Subscription subscription,
+                                                              final boolean nowait,
+                                                              final Monitor monitor) {
+        final PushMessageDispatcher dispatcher = monitor.dispatcher;
+        return http2Client.getRequest(subscription.subscriptionResource(), new Listener.Adapter() {
 
             @Override
             public Listener onPush(Stream stream, PushPromiseFrame frame) {
-                if (builder != null) {
-                    throw new IllegalStateException(
-                            "PushMessage.Builder must not be initialized before PUSH_PROMISE frame");
-                }
                 final Request request = (Request) frame.getMetaData();
                 final String pushMessagePath = request.getURI().getPath();
-                builder = new PushMessage.Builder(pushMessagePath);
-                return this;
+                //every pushed stream has its own builder, a stream abandoned on failover leaves no state behind
+                return new PushMessageListener(new PushMessage.Builder(pushMessagePath), dispatcher);
             }
 
             @Override
             public void onHeaders(Stream stream, HeadersFrame frame) {
+                if (frame.isEndStream()) {
+                    //consumers which are added after this point get a new monitor instead of this finished one
+                    monitorFinished(subscription, monitor);
+                }
                 final Response response = (Response) frame.getMetaData();
                 if (response.getStatus() == 204) {
-                    consumer.accept(Optional.empty());
-                    return;
+                    dispatcher.publish(Optional.empty());
                 }
-                if (builder == null) {
-                    throw new IllegalStateException("PushMessage.Builder must be initialized before HEADERS frame");
-                }
-                builder.receivedDateTime(LocalDateTime.now())   //TODO parse "date" header
-                        .createdDateTime(null);   //TODO parse "last-modified" header
             }
 
             @Override
             public void onData(Stream stream, DataFrame frame, Callback callback) {
-                if (builder == null) {
-                    throw new IllegalStateException("PushMessage.Builder must be initialized before DATA frame");
-                }
-                //TODO optimize data read
-                final ByteBuffer dataBuffer = frame.getData();
-                final CharBuffer charBuffer = StandardCharsets.UTF_8.decode(dataBuffer);
-                builder.addDataFrame(charBuffer.toString());
                 callback.succeeded();
                 if (frame.isEndStream()) {
-                    Optional<PushMessage> pushMessage = Optional.of(builder.build());
-                    builder = null;
-                    acknowledge(pushMessage.get());
-                    consumer.accept(pushMessage);
+                    monitorFinished(subscription, monitor);
                 }
             }
+
+            @Override
+            public void onReset(Stream stream, ResetFrame frame) {
+                monitorFinished(subscription, monitor);
+            }
         }, nowait ? HTTP_FIELDS_WITH_PREFER_HEADER : null);
     }
 
-    private void acknowledge(final PushMessage pushMessage) {
+    /**
+     * Forgets the monitor when its stream is finished, unless it was already replaced or canceled.
+     */
+    private void monitorFinished(final Subscription subscription, final Monitor monitor) {
+        monitoredSubscriptions.remove(subscription, monitor);
+    }
+
+    private void acknowledge(final Subscription subscription, final PushMessage pushMessage) {
         Objects.requireNonNull(pushMessage, "pushMessage");
-        http2Client.deleteRequest(pushMessage.resource(), new Listener.Adapter());
+        http2Client.deleteRequest(pushMessage.resource(), subscription.subscriptionResource(),
+                new Listener.Adapter());
     }
 
     /**
      * Cancels monitoring for specified subscription.
+     * The monitor stream is reset, or removed from the queue if it is still waiting for a free stream slot.
      *
      * @param subscription for which monitoring should be canceled.
      */
     public void cancelMonitoring(final Subscription subscription) {
-        final Consumer<Optional<PushMessage>> consumer = monitoredSubscriptions.remove(subscription);
-        if (consumer == null) {
+        final Monitor monitor = monitoredSubscriptions.remove(subscription);
+        if (monitor == null) {
             return; //this subscription is not monitored
         }
-        //TODO implement cancel monitoring when WebPush Server will support this function
+        monitor.cancel();
+    }
+
+    /**
+     * Removes consumer of specified subscription.
+     * Monitoring of the subscription is canceled when its last consumer is removed.
+     *
+     * @param subscription monitored subscription.
+     * @param consumer     consumer which was passed to {@link #monitor(Subscription, Consumer)}.
+     */
+    public void cancelMonitoring(final Subscription subscription, final Consumer<Optional<PushMessage>> consumer) {
+        Objects.requireNonNull(consumer, "pushMessageConsumer");
+        final Monitor monitor = monitoredSubscriptions.get(subscription);
+        if (monitor == null || !monitor.dispatcher.removeConsumer(consumer)) {
+            return; //this consumer does not monitor the subscription
+        }
+        //removing the consumer may acknowledge push messages, so it is done outside of the map update,
+        //consumers are added only inside of the map update, so the check and the removal are atomic
+        if (monitoredSubscriptions.computeIfPresent(subscription,
+                (s, current) -> current == monitor && !monitor.dispatcher.hasConsumers() ? null : current) == null) {
+            monitor.cancel();
+        }
+    }
+
+    /**
+     * Receives one push message on a pushed stream.
+     */
+    private static final class PushMessageListener extends Listener.Adapter {
+
+        private final PushMessage.Builder builder;
+        private final PushMessageDispatcher dispatcher;
+
+        private PushMessageListener(final PushMessage.Builder builder, final PushMessageDispatcher dispatcher) {
+            this.builder = builder;
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public void onHeaders(Stream stream, HeadersFrame frame) {
+            builder.receivedDateTime(LocalDateTime.now())   //TODO parse "date" header
+                    .createdDateTime(null);   //TODO parse "last-modified" header
+        }
+
+        @Override
+        public void onData(Stream stream, DataFrame frame, Callback callback) {
+            //TODO optimize data read
+            final ByteBuffer dataBuffer = frame.getData();
+            final CharBuffer charBuffer = StandardCharsets.UTF_8.decode(dataBuffer);
+            builder.addDataFrame(charBuffer.toString());
+            callback.succeeded();
+            if (frame.isEndStream()) {
+                dispatcher.publish(Optional.of(builder.build()));
+            }
+        }
+    }
+
+    private static final class Monitor {
+
+        private final PushMessageDispatcher dispatcher;
+
+        //guarded by this
+        private JettyHttp2Client.PendingRequest request;
+        private boolean canceled;
+
+        private Monitor(final PushMessageDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        private synchronized void start(final JettyHttp2Client.PendingRequest request) {
+            if (canceled) {
+                request.cancel();
+            } else {
+                this.request = request;
+            }
+        }
+
+        private synchronized void cancel() {
+            canceled = true;
+            if (request != null) {
+                request.cancel();
+            }
+        }
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.io.MappedByteBufferPool;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * HTTP/2 transport which can be shared by many {@link WebPushClient} instances.
+ * It owns selector threads, thread pool, scheduler, buffer pool and SSL context,
+ * so the number of threads does not grow with the number of clients.
+ *
+ * <p>Example of WebPushTransport usage:
+ * <pre>{@code
+ *     WebPushTransport transport = new WebPushTransport(true);
+ *     WebPushClient first = new WebPushClient("https://localhost:8443", transport);
+ *     WebPushClient second = new WebPushClient("https://localhost:8444", transport);
+ * }</pre>
+ *
+ * The transport is reference-counted: it is started when the first client connects
+ * and stopped when the last client disconnects. If the last client disconnects on a thread of the transport,
+ * for example from a push message consumer, the transport is stopped on another thread.
+ */
+public final class WebPushTransport {
+
+    private final HTTP2Client client;
+    private final SslContextFactory sslContextFactory;
+    private final QueuedThreadPool executor;
+    private final ThreadGroup threadGroup = new ThreadGroup("webpush");
+    private final Scheduler scheduler;
+
+    private volatile TokenBucket rateLimit;
+
+    //guarded by this
+    private int references;
+    private Thread stopThread;
+
+    /**
+     * Creates transport with default thread pool size.
+     *
+     * @param trustAll whether to blindly trust all certificates.
+     */
+    public WebPushTransport(final boolean trustAll) {
+        this(trustAll, 200);
+    }
+
+    /**
+     * Creates transport.
+     *
+     * @param trustAll   whether to blindly trust all certificates.
+     * @param maxThreads maximum number of threads shared by all clients.
+     */
+    public WebPushTransport(final boolean trustAll, final int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be positive, current value: " + maxThreads);
+        }
+        executor = new QueuedThreadPool(maxThreads) {
+
+            @Override
+            protected Thread newThread(final Runnable runnable) {
+                return new Thread(threadGroup, runnable);
+            }
+        };
+        executor.setName("webpush");
+        scheduler = new ScheduledExecutorScheduler("webpush-scheduler", false);
+        sslContextFactory = new SslContextFactory(trustAll);
+
+        client = new HTTP2Client();
+        client.setExecutor(executor);
+        client.setScheduler(scheduler);
+        client.setByteBufferPool(new MappedByteBufferPool());
+        client.addBean(sslContextFactory);
+    }
+
+    /**
+     * Limits the rate of requests sent by all clients which share this transport.
+     * Each client can have its own lower limit, see {@link WebPushClient#rateLimit(double, int)}.
+     *
+     * @param requestsPerSecond sustained rate of requests.
+     * @param burst             maximum number of requests sent at once after an idle period.
+     */
+    public void rateLimit(final double requestsPerSecond, final int burst) {
+        rateLimit = new TokenBucket(requestsPerSecond, burst);
+    }
+
+    /**
+     * Takes a reference, the first reference starts the transport.
+     * It waits until the transport is stopped, if the last reference was released on a thread of the transport.
+     */
+    synchronized void retain() throws Exception {
+        if (references == 0) {
+            if (stopThread != null) {
+                stopThread.join();
+                stopThread = null;
+            }
+            client.start();
+        }
+        references++;
+    }
+
+    /**
+     * Releases a reference, the last reference stops the transport.
+     */
+    synchronized void release() throws Exception {
+        if (references == 0) {
+            throw new IllegalStateException("transport is not retained");
+        }
+        if (--references == 0) {
+            if (Thread.currentThread().getThreadGroup() == threadGroup) {
+                //the thread pool would wait for the current thread until its stop timeout expires
+                stopThread = new Thread(this::stop, "webpush-stop");
+                stopThread.start();
+            } else {
+                client.stop();
+            }
+        }
+    }
+
+    private void stop() {
+        try {
+            client.stop();
+        } catch (Exception e) {
+            final Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    TokenBucket rateLimit() {
+        return rateLimit;
+    }
+
+    HTTP2Client client() {
+        return client;
+    }
+
+    SslContextFactory sslContextFactory() {
+        return sslContextFactory;
+    }
+
+    Executor executor() {
+        return executor;
+    }
+
+    Scheduler scheduler() {
+        return scheduler;
+    }
+}
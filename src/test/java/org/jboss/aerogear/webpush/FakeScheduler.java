@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler which runs tasks only when the test asks for it, regardless of their delay.
+ */
+final class FakeScheduler extends AbstractLifeCycle implements Scheduler {
+
+    //guarded by this
+    private final List<FakeTask> tasks = new ArrayList<>();
+
+    @Override
+    public synchronized Task schedule(final Runnable task, final long delay, final TimeUnit units) {
+        final FakeTask fakeTask = new FakeTask(task);
+        tasks.add(fakeTask);
+        return fakeTask;
+    }
+
+    /**
+     * Runs tasks which are scheduled and not canceled, tasks scheduled meanwhile run on the next call.
+     */
+    void runScheduled() {
+        final List<FakeTask> scheduled;
+        synchronized (this) {
+            scheduled = new ArrayList<>(tasks);
+            tasks.clear();
+        }
+        for (final FakeTask task : scheduled) {
+            if (!task.isCanceled()) {
+                task.runnable.run();
+            }
+        }
+    }
+
+    synchronized int scheduledCount() {
+        int count = 0;
+        for (final FakeTask task : tasks) {
+            if (!task.isCanceled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final class FakeTask implements Task {
+
+        private final Runnable runnable;
+        private volatile boolean canceled;
+
+        private FakeTask(final Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        @Override
+        public boolean cancel() {
+            final boolean result = !canceled;
+            canceled = true;
+            return result;
+        }
+
+        private boolean isCanceled() {
+            return canceled;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.PingFrame;
+import org.eclipse.jetty.http2.frames.PriorityFrame;
+import org.eclipse.jetty.http2.frames.SettingsFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.Promise;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Session which records new streams and PINGs, the test completes stream promises manually.
+ */
+final class FakeSession implements Session {
+
+    //guarded by this
+    private final List<NewStream> newStreams = new ArrayList<>();
+    private final List<PingFrame> pings = new ArrayList<>();
+    private int lastStreamId = -1;
+    private boolean closed;
+
+    @Override
+    public synchronized void newStream(final HeadersFrame frame, final Promise<Stream> promise,
+                                       final Stream.Listener listener) {
+        newStreams.add(new NewStream(frame, promise, listener));
+    }
+
+    @Override
+    public int priority(final PriorityFrame frame, final Callback callback) {
+        callback.succeeded();
+        return frame.getStreamId();
+    }
+
+    @Override
+    public void settings(final SettingsFrame frame, final Callback callback) {
+        callback.succeeded();
+    }
+
+    @Override
+    public synchronized void ping(final PingFrame frame, final Callback callback) {
+        pings.add(frame);
+        callback.succeeded();
+    }
+
+    @Override
+    public synchronized boolean close(final int error, final String payload, final Callback callback) {
+        closed = true;
+        callback.succeeded();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public Collection<Stream> getStreams() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Stream getStream(final int streamId) {
+        return null;
+    }
+
+    synchronized int newStreamCount() {
+        return newStreams.size();
+    }
+
+    synchronized NewStream newStream(final int index) {
+        return newStreams.get(index);
+    }
+
+    synchronized List<PingFrame> pings() {
+        return new ArrayList<>(pings);
+    }
+
+    private synchronized int nextStreamId() {
+        lastStreamId += 2;
+        return lastStreamId;
+    }
+
+    /**
+     * Stream requested by the client.
+     */
+    final class NewStream {
+
+        final HeadersFrame frame;
+        final Promise<Stream> promise;
+        final Stream.Listener listener;
+
+        private NewStream(final HeadersFrame frame, final Promise<Stream> promise, final Stream.Listener listener) {
+            this.frame = frame;
+            this.promise = promise;
+            this.listener = listener;
+        }
+
+        String method() {
+            return ((MetaData.Request) frame.getMetaData()).getMethod();
+        }
+
+        String path() {
+            return ((MetaData.Request) frame.getMetaData()).getURI().getPath();
+        }
+
+        FakeStream open() {
+            final FakeStream stream = new FakeStream(nextStreamId(), FakeSession.this);
+            promise.succeeded(stream);
+            return stream;
+        }
+
+        void fail() {
+            promise.failed(new IllegalStateException("session is closing"));
+        }
+    }
+}
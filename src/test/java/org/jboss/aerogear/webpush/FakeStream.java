@@ -0,0 +1,122 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.PushPromiseFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.Promise;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stream which records DATA frames and resets sent by the client.
+ */
+final class FakeStream implements Stream {
+
+    private final int id;
+    private final Session session;
+
+    //guarded by this
+    private final List<DataFrame> dataFrames = new ArrayList<>();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private ResetFrame resetFrame;
+    private long idleTimeout;
+
+    FakeStream(final int id, final Session session) {
+        this.id = id;
+        this.session = session;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public Session getSession() {
+        return session;
+    }
+
+    @Override
+    public void headers(final HeadersFrame frame, final Callback callback) {
+        callback.succeeded();
+    }
+
+    @Override
+    public void push(final PushPromiseFrame frame, final Promise<Stream> promise, final Listener listener) {
+        promise.failed(new UnsupportedOperationException());
+    }
+
+    @Override
+    public synchronized void data(final DataFrame frame, final Callback callback) {
+        dataFrames.add(frame);
+        callback.succeeded();
+    }
+
+    @Override
+    public synchronized void reset(final ResetFrame frame, final Callback callback) {
+        resetFrame = frame;
+        callback.succeeded();
+    }
+
+    @Override
+    public synchronized Object getAttribute(final String key) {
+        return attributes.get(key);
+    }
+
+    @Override
+    public synchronized void setAttribute(final String key, final Object value) {
+        attributes.put(key, value);
+    }
+
+    @Override
+    public synchronized Object removeAttribute(final String key) {
+        return attributes.remove(key);
+    }
+
+    @Override
+    public synchronized boolean isReset() {
+        return resetFrame != null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    @Override
+    public synchronized void setIdleTimeout(final long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    synchronized List<DataFrame> dataFrames() {
+        return new ArrayList<>(dataFrames);
+    }
+}
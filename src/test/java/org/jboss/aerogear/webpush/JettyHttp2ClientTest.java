@@ -0,0 +1,363 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.api.Stream.Listener;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.GoAwayFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.http2.frames.SettingsFrame;
+import org.eclipse.jetty.util.Promise;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JettyHttp2ClientTest {
+
+    private final FakeSessionClient client = new FakeSessionClient();
+
+    @After
+    public void disconnect() throws Exception {
+        client.disconnect();
+    }
+
+    @Test
+    public void opensStreamsInPriorityOrder() throws Exception {
+        client.getRequest("/s/1", new Listener.Adapter(), null);
+        client.postRequest("/subscribe", new Listener.Adapter());
+        client.deleteRequest("/p/1", "/s/1", new Listener.Adapter());
+        client.connect();
+
+        final FakeSession session = client.session();
+        assertEquals(3, session.newStreamCount());
+        assertEquals("DELETE", session.newStream(0).method());
+        assertEquals("POST", session.newStream(1).method());
+        assertEquals("GET", session.newStream(2).method());
+    }
+
+    @Test
+    public void keepsStreamSlotsForShortLivedRequests() throws Exception {
+        client.connect();
+        client.settings(4);
+        final FakeSession session = client.session();
+
+        client.getRequest("/s/1", new Listener.Adapter(), null);
+        client.getRequest("/s/2", new Listener.Adapter(), null);
+        client.getRequest("/s/3", new Listener.Adapter(), null);
+        assertEquals(2, session.newStreamCount());
+
+        client.deleteRequest("/p/1", "/s/1", new Listener.Adapter());
+        client.deleteRequest("/p/2", "/s/1", new Listener.Adapter());
+        assertEquals(4, session.newStreamCount());
+
+        finish(session.newStream(2));
+        assertEquals(4, session.newStreamCount());
+        client.postRequest("/subscribe", new Listener.Adapter());
+        assertEquals(5, session.newStreamCount());
+        assertEquals("POST", session.newStream(4).method());
+
+        finish(session.newStream(0));
+        assertEquals(6, session.newStreamCount());
+        assertEquals("/s/3", session.newStream(5).path());
+    }
+
+    @Test
+    public void refusesLongLivedRequestsWhenOnlyOneStreamIsAllowed() throws Exception {
+        client.connect();
+        client.settings(1);
+        final FakeSession session = client.session();
+        final CountDownLatch refused = new CountDownLatch(1);
+        final AtomicInteger error = new AtomicInteger();
+
+        client.getRequest("/s/1", new Listener.Adapter() {
+
+            @Override
+            public void onReset(final Stream stream, final ResetFrame frame) {
+                error.set(frame.getError());
+                refused.countDown();
+            }
+        }, null);
+
+        assertTrue(refused.await(5, TimeUnit.SECONDS));
+        assertEquals(ErrorCode.REFUSED_STREAM_ERROR.code, error.get());
+        assertEquals(0, session.newStreamCount());
+        client.deleteRequest("/p/1", "/s/1", new Listener.Adapter());
+        assertEquals(1, session.newStreamCount());
+    }
+
+    @Test
+    public void removesCanceledRequestFromQueue() throws Exception {
+        client.getRequest("/s/1", new Listener.Adapter(), null).cancel();
+        client.connect();
+
+        assertEquals(0, client.session().newStreamCount());
+    }
+
+    @Test
+    public void resetsStreamWhichIsOpenedAfterCancel() throws Exception {
+        client.connect();
+        final FakeSession session = client.session();
+
+        client.getRequest("/s/1", new Listener.Adapter(), null).cancel();
+        final FakeStream stream = session.newStream(0).open();
+
+        assertTrue(stream.isReset());
+    }
+
+    @Test
+    public void resetsOpenedStreamOnCancel() throws Exception {
+        client.connect();
+        client.settings(2);
+        final FakeSession session = client.session();
+
+        final JettyHttp2Client.PendingRequest request = client.getRequest("/s/1", new Listener.Adapter(), null);
+        client.getRequest("/s/2", new Listener.Adapter(), null);
+        final FakeStream stream = session.newStream(0).open();
+        assertFalse(stream.isReset());
+        assertEquals(1, session.newStreamCount());
+
+        request.cancel();
+        assertTrue(stream.isReset());
+        assertEquals(2, session.newStreamCount());
+        assertEquals("/s/2", session.newStream(1).path());
+    }
+
+    @Test
+    public void sendsRequestAgainWhenStreamCanNotBeOpened() throws Exception {
+        client.connect();
+        final FakeSession session = client.session();
+
+        client.deleteRequest("/p/1", "/s/1", new Listener.Adapter());
+        session.newStream(0).fail();
+        assertEquals(1, session.newStreamCount());
+
+        awaitNewStreams(session, 2);
+        assertEquals("DELETE", session.newStream(1).method());
+        assertEquals("/p/1", session.newStream(1).path());
+    }
+
+    @Test
+    public void forgetsLeastRecentlyUsedResourceRateLimits() throws Exception {
+        client.connect();
+        client.resourceRateLimit(0.001, 1);
+        final FakeSession session = client.session();
+
+        client.deleteRequest("/p/1", "/s/0", new Listener.Adapter());
+        client.deleteRequest("/p/2", "/s/0", new Listener.Adapter());
+        assertEquals(1, session.newStreamCount());
+
+        for (int i = 1; i <= 1024; i++) {
+            client.deleteRequest("/p/" + i, "/s/" + i, new Listener.Adapter());
+        }
+        assertEquals(1025, session.newStreamCount());
+
+        client.deleteRequest("/p/3", "/s/0", new Listener.Adapter());
+        assertEquals(1026, session.newStreamCount());
+    }
+
+    @Test
+    public void sendsBodyOfRequestContent() throws Exception {
+        client.connect();
+        final FakeSession session = client.session();
+
+        client.postRequest("/p/1", new TestContent("a", false), new Listener.Adapter());
+        final FakeStream stream = session.newStream(0).open();
+
+        assertEquals(1, stream.dataFrames().size());
+        final DataFrame frame = stream.dataFrames().get(0);
+        assertEquals("a", body(stream));
+        assertTrue(frame.isEndStream());
+    }
+
+    @Test
+    public void dropsExpiredContentBeforeTakingRateLimitTokens() throws Exception {
+        client.connect();
+        client.resourceRateLimit(0.001, 1);
+        final FakeSession session = client.session();
+
+        final TestContent expired = new TestContent("a", true);
+        client.postRequest("/p/1", expired, new Listener.Adapter());
+        assertEquals(0, session.newStreamCount());
+        assertTrue(expired.dropped);
+
+        client.postRequest("/p/1", new TestContent("b", false), new Listener.Adapter());
+        assertEquals(1, session.newStreamCount());
+    }
+
+    @Test
+    public void resendsOnlyUnprocessedPushMessagesOnGoAway() throws Exception {
+        client.connect();
+        final FakeSession session = client.session();
+        final ResetListener processed = new ResetListener();
+
+        client.postRequest("/p/1", new TestContent("a", false), processed);
+        client.postRequest("/p/1", new TestContent("b", false), new Listener.Adapter());
+        client.postRequest("/p/1", new TestContent("c", false), new Listener.Adapter());
+        session.newStream(0).open();
+        session.newStream(1).open();
+        client.listener().onClose(session, new GoAwayFrame(1, ErrorCode.NO_ERROR.code, null));
+
+        assertTrue(processed.reset.await(5, TimeUnit.SECONDS));
+        assertEquals(ErrorCode.CANCEL_STREAM_ERROR.code, processed.error);
+        assertEquals(2, client.sessionCount());
+        final FakeSession newSession = client.session();
+        assertEquals(2, newSession.newStreamCount());
+        assertEquals("b", body(newSession.newStream(0).open()));
+        assertEquals("c", body(newSession.newStream(1).open()));
+    }
+
+    @Test
+    public void resendsOnlyRetryableRequestsWhenSessionFails() throws Exception {
+        client.connect();
+        final FakeSession session = client.session();
+        final ResetListener processed = new ResetListener();
+
+        client.postRequest("/p/1", new TestContent("a", false), processed);
+        client.deleteRequest("/p/2", "/s/1", new Listener.Adapter());
+        session.newStream(0).open();
+        session.newStream(1).open();
+        client.listener().onFailure(session, new IOException("connection reset"));
+
+        assertTrue(processed.reset.await(5, TimeUnit.SECONDS));
+        final FakeSession newSession = client.session();
+        assertEquals(1, newSession.newStreamCount());
+        assertEquals("DELETE", newSession.newStream(0).method());
+    }
+
+    static void finish(final FakeSession.NewStream newStream) {
+        final FakeStream stream = newStream.open();
+        newStream.listener.onReset(stream, new ResetFrame(stream.getId(), ErrorCode.NO_ERROR.code));
+    }
+
+    private static String body(final FakeStream stream) {
+        return StandardCharsets.UTF_8.decode(stream.dataFrames().get(0).getData()).toString();
+    }
+
+    static void awaitNewStreams(final FakeSession session, final int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (session.newStreamCount() < count && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, session.newStreamCount());
+    }
+
+    /**
+     * Records the error of the first reset.
+     */
+    private static final class ResetListener extends Listener.Adapter {
+
+        private final CountDownLatch reset = new CountDownLatch(1);
+        private volatile int error;
+
+        @Override
+        public void onReset(final Stream stream, final ResetFrame frame) {
+            error = frame.getError();
+            reset.countDown();
+        }
+    }
+
+    /**
+     * Content with a fixed body which is either always or never expired.
+     */
+    private static final class TestContent implements JettyHttp2Client.RequestContent {
+
+        private final String data;
+        private final boolean expired;
+        private volatile boolean dropped;
+
+        private TestContent(final String data, final boolean expired) {
+            this.data = data;
+            this.expired = expired;
+        }
+
+        @Override
+        public boolean expired(final long nowNanos) {
+            return expired;
+        }
+
+        @Override
+        public void dropped() {
+            dropped = true;
+        }
+
+        @Override
+        public HttpFields httpFields(final long nowNanos) {
+            return new HttpFields();
+        }
+
+        @Override
+        public ByteBuffer body() {
+            return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Client which connects fake sessions instead of connecting to WebPush Server.
+     */
+    static final class FakeSessionClient extends JettyHttp2Client {
+
+        private final List<FakeSession> sessions = new CopyOnWriteArrayList<>();
+        private volatile Session.Listener listener;
+
+        FakeSessionClient() {
+            super("localhost", 8443, new WebPushTransport(true));
+            keepalive(0, 1);
+        }
+
+        @Override
+        void newSession(final Session.Listener listener, final Promise<Session> promise) {
+            this.listener = listener;
+            final FakeSession session = new FakeSession();
+            sessions.add(session);
+            promise.succeeded(session);
+        }
+
+        FakeSession session() {
+            return sessions.get(sessions.size() - 1);
+        }
+
+        int sessionCount() {
+            return sessions.size();
+        }
+
+        Session.Listener listener() {
+            return listener;
+        }
+
+        void settings(final int maxConcurrentStreams) {
+            listener.onSettings(session(), new SettingsFrame(
+                    Collections.singletonMap(SettingsFrame.MAX_CONCURRENT_STREAMS, maxConcurrentStreams), false));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ParseUtilsTest {
+
+    @Test
+    public void parsesRetryAfterSeconds() {
+        assertEquals(Long.valueOf(120), ParseUtils.parseRetryAfter(" 120 "));
+        assertEquals(Long.valueOf(0), ParseUtils.parseRetryAfter("0"));
+    }
+
+    @Test
+    public void clampsRetryAfterOverflow() {
+        assertEquals(Long.valueOf(Long.MAX_VALUE), ParseUtils.parseRetryAfter("99999999999999999999999999"));
+    }
+
+    @Test
+    public void parsesRetryAfterDate() {
+        final String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)
+                .plusSeconds(60));
+
+        final long seconds = ParseUtils.parseRetryAfter(date);
+        assertTrue("seconds: " + seconds, seconds > 50 && seconds <= 60);
+    }
+
+    @Test
+    public void parsesPastRetryAfterDateAsZero() {
+        assertEquals(Long.valueOf(0), ParseUtils.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+
+    @Test
+    public void rejectsInvalidRetryAfter() {
+        assertNull(ParseUtils.parseRetryAfter("soon"));
+        assertNull(ParseUtils.parseRetryAfter("-1"));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http2.frames.PingFrame;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PingKeepaliveTest {
+
+    private final FakeSession session = new FakeSession();
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private final RoundTripHistogram histogram = new RoundTripHistogram();
+    private final AtomicInteger deadSessions = new AtomicInteger();
+    private final PingKeepalive keepalive = new PingKeepalive(session, scheduler, 1000, 2, histogram,
+            deadSessions::incrementAndGet);
+
+    @Test
+    public void sendsPingWhenIntervalElapses() {
+        keepalive.start();
+        assertTrue(session.pings().isEmpty());
+
+        scheduler.runScheduled();
+
+        assertEquals(1, session.pings().size());
+        final PingFrame ping = session.pings().get(0);
+        assertFalse(ping.isReply());
+        assertEquals(Long.BYTES, ping.getPayload().length);
+        assertEquals(1, scheduler.scheduledCount());
+    }
+
+    @Test
+    public void recordsRoundTripTimeOfReply() {
+        keepalive.start();
+        scheduler.runScheduled();
+
+        keepalive.onPing(reply(0));
+
+        assertNotEquals(Duration.ZERO, histogram.percentile(100));
+    }
+
+    @Test
+    public void declaresSessionDeadAfterMissedPings() {
+        keepalive.start();
+        scheduler.runScheduled();
+        scheduler.runScheduled();
+        assertEquals(0, deadSessions.get());
+
+        scheduler.runScheduled();
+
+        assertEquals(1, deadSessions.get());
+        assertEquals(2, session.pings().size());
+        assertEquals(0, scheduler.scheduledCount());
+    }
+
+    @Test
+    public void replyResetsMissedPings() {
+        keepalive.start();
+        scheduler.runScheduled();
+        scheduler.runScheduled();
+        keepalive.onPing(reply(1));
+
+        scheduler.runScheduled();
+        scheduler.runScheduled();
+
+        assertEquals(0, deadSessions.get());
+        assertEquals(4, session.pings().size());
+    }
+
+    @Test
+    public void lateReplyResetsMissedPings() {
+        keepalive.start();
+        scheduler.runScheduled();
+        scheduler.runScheduled();
+        keepalive.onPing(reply(0));
+
+        scheduler.runScheduled();
+        assertEquals(0, deadSessions.get());
+        assertEquals(3, session.pings().size());
+
+        scheduler.runScheduled();
+        assertEquals(1, deadSessions.get());
+    }
+
+    @Test
+    public void ignoresPingsWhichAreNotReplies() {
+        keepalive.start();
+        scheduler.runScheduled();
+        scheduler.runScheduled();
+
+        keepalive.onPing(new PingFrame(session.pings().get(1).getPayload(), false));
+        keepalive.onPing(new PingFrame(payload(System.nanoTime() + 1_000_000_000L), true));
+        scheduler.runScheduled();
+
+        assertEquals(1, deadSessions.get());
+        assertEquals(Duration.ZERO, histogram.percentile(100));
+    }
+
+    @Test
+    public void stopCancelsScheduledPing() {
+        keepalive.start();
+        keepalive.stop();
+
+        scheduler.runScheduled();
+
+        assertTrue(session.pings().isEmpty());
+        assertEquals(0, scheduler.scheduledCount());
+    }
+
+    private PingFrame reply(final int index) {
+        return new PingFrame(session.pings().get(index).getPayload(), true);
+    }
+
+    private static byte[] payload(final long nanos) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(nanos).array();
+    }
+}
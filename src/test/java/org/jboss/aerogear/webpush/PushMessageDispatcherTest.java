@@ -0,0 +1,164 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PushMessageDispatcherTest {
+
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final List<PushMessage> acknowledged = new ArrayList<>();
+    private final List<Consumer<Optional<PushMessage>>> slowConsumers = new ArrayList<>();
+    private final List<Optional<PushMessage>> first = new ArrayList<>();
+    private final List<Optional<PushMessage>> second = new ArrayList<>();
+    private final Consumer<Optional<PushMessage>> firstConsumer = first::add;
+    private final Consumer<Optional<PushMessage>> secondConsumer = second::add;
+
+    @Test
+    public void deliversToAllConsumersAndAcknowledgesOnce() {
+        final PushMessageDispatcher dispatcher = newDispatcher(4, 0);
+        dispatcher.addConsumer(firstConsumer);
+        dispatcher.addConsumer(secondConsumer);
+        final Optional<PushMessage> message = message("/p/0");
+
+        dispatcher.publish(message);
+        runNextTask();
+        assertTrue(acknowledged.isEmpty());
+        runNextTask();
+
+        assertEquals(Collections.singletonList(message), first);
+        assertEquals(Collections.singletonList(message), second);
+        assertEquals(Collections.singletonList(message.get()), acknowledged);
+    }
+
+    @Test
+    public void acknowledgesWhenQuorumIsReached() {
+        final PushMessageDispatcher dispatcher = newDispatcher(4, 1);
+        dispatcher.addConsumer(firstConsumer);
+        dispatcher.addConsumer(secondConsumer);
+        final Optional<PushMessage> message = message("/p/0");
+
+        dispatcher.publish(message);
+        runNextTask();
+        assertEquals(Collections.singletonList(message.get()), acknowledged);
+        runNextTask();
+
+        assertEquals(Collections.singletonList(message.get()), acknowledged);
+        assertEquals(Collections.singletonList(message), second);
+    }
+
+    @Test
+    public void acknowledgesWithoutConsumers() {
+        final PushMessageDispatcher dispatcher = newDispatcher(4, 0);
+        final Optional<PushMessage> message = message("/p/0");
+
+        dispatcher.publish(message);
+        dispatcher.publish(Optional.empty());
+
+        assertEquals(Collections.singletonList(message.get()), acknowledged);
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void doesNotAcknowledgeEmptyMessage() {
+        final PushMessageDispatcher dispatcher = newDispatcher(4, 0);
+        dispatcher.addConsumer(firstConsumer);
+
+        dispatcher.publish(Optional.empty());
+        runNextTask();
+
+        assertEquals(Collections.singletonList(Optional.<PushMessage>empty()), first);
+        assertTrue(acknowledged.isEmpty());
+    }
+
+    @Test
+    public void removedConsumerNoLongerBlocksAcknowledgement() {
+        final PushMessageDispatcher dispatcher = newDispatcher(4, 0);
+        dispatcher.addConsumer(firstConsumer);
+        dispatcher.addConsumer(secondConsumer);
+        final Optional<PushMessage> message = message("/p/0");
+
+        dispatcher.publish(message);
+        runNextTask();
+        assertTrue(dispatcher.removeConsumer(secondConsumer));
+        runNextTask();
+
+        assertEquals(Collections.singletonList(message.get()), acknowledged);
+        assertTrue(second.isEmpty());
+        assertTrue(dispatcher.hasConsumers());
+        assertTrue(dispatcher.removeConsumer(firstConsumer));
+        assertFalse(dispatcher.hasConsumers());
+        assertFalse(dispatcher.removeConsumer(firstConsumer));
+    }
+
+    @Test
+    public void slowConsumerSkipsOverwrittenMessages() {
+        final PushMessageDispatcher dispatcher = newDispatcher(2, 0);
+        dispatcher.addConsumer(firstConsumer);
+        final Optional<PushMessage> m0 = message("/p/0");
+        final Optional<PushMessage> m1 = message("/p/1");
+        final Optional<PushMessage> m2 = message("/p/2");
+
+        dispatcher.publish(m0);
+        dispatcher.publish(m1);
+        dispatcher.publish(m2);
+        runNextTask();
+
+        assertEquals(Collections.singletonList(firstConsumer), slowConsumers);
+        assertEquals(Arrays.asList(m1, m2), first);
+        assertEquals(Arrays.asList(m0.get(), m1.get(), m2.get()), acknowledged);
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void ignoresDuplicateConsumer() {
+        final PushMessageDispatcher dispatcher = newDispatcher(4, 0);
+
+        assertTrue(dispatcher.addConsumer(firstConsumer));
+        assertFalse(dispatcher.addConsumer(firstConsumer));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBufferSizeWhichIsNotPowerOfTwo() {
+        newDispatcher(3, 0);
+    }
+
+    private PushMessageDispatcher newDispatcher(final int bufferSize, final int quorum) {
+        return new PushMessageDispatcher(bufferSize, quorum, tasks::add, acknowledged::add, slowConsumers::add);
+    }
+
+    private void runNextTask() {
+        tasks.remove().run();
+    }
+
+    private static Optional<PushMessage> message(final String resource) {
+        return Optional.of(new PushMessage.Builder(resource).addDataFrame("data").build());
+    }
+}
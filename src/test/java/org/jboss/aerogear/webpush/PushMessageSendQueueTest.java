@@ -0,0 +1,199 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http2.api.Stream.Listener;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PushMessageSendQueueTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final RecordingClient client = new RecordingClient();
+
+    @Test
+    public void limitsMessagesInFlight() {
+        final PushMessageSendQueue queue = new PushMessageSendQueue(client, 2);
+
+        queue.offer("/p/1", "a", 60, Urgency.NORMAL, null);
+        queue.offer("/p/1", "b", 60, Urgency.NORMAL, null);
+        queue.offer("/p/1", "c", 60, Urgency.NORMAL, null);
+        assertEquals(2, client.requests.size());
+
+        complete(0);
+        assertEquals(3, client.requests.size());
+        assertEquals("c", body(client.requests.get(2)));
+    }
+
+    @Test
+    public void sendsHigherUrgencyFirst() {
+        final PushMessageSendQueue queue = new PushMessageSendQueue(client, 1);
+
+        queue.offer("/p/1", "normal", 60, Urgency.NORMAL, null);
+        queue.offer("/p/1", "low", 60, Urgency.LOW, null);
+        queue.offer("/p/1", "high", 60, Urgency.HIGH, null);
+        complete(0);
+        complete(1);
+
+        assertEquals("high", body(client.requests.get(1)));
+        assertEquals("high", client.requests.get(1).content.httpFields(System.nanoTime()).get("Urgency"));
+        assertEquals("low", body(client.requests.get(2)));
+    }
+
+    @Test
+    public void replacesQueuedMessageWithSameTopic() {
+        final PushMessageSendQueue queue = new PushMessageSendQueue(client, 1);
+
+        queue.offer("/p/1", "first", 60, Urgency.NORMAL, null);
+        queue.offer("/p/1", "old", 60, Urgency.NORMAL, "t");
+        queue.offer("/p/2", "other", 60, Urgency.NORMAL, "t");
+        queue.offer("/p/1", "new", 60, Urgency.NORMAL, "t");
+        complete(0);
+        complete(1);
+
+        assertEquals(3, client.requests.size());
+        assertEquals("new", body(client.requests.get(1)));
+        assertEquals("other", body(client.requests.get(2)));
+    }
+
+    @Test
+    public void replacesMessageUntilItsStreamIsOpened() {
+        final PushMessageSendQueue queue = new PushMessageSendQueue(client, 2);
+
+        queue.offer("/p/1", "old", 60, Urgency.NORMAL, "t");
+        queue.offer("/p/1", "new", 60, Urgency.HIGH, "t");
+        assertEquals(1, client.requests.size());
+        final HttpFields httpFields = client.requests.get(0).content.httpFields(System.nanoTime());
+        assertEquals("new", new String(client.requests.get(0).content.body().array(), StandardCharsets.UTF_8));
+        assertEquals("high", httpFields.get("Urgency"));
+        assertEquals("t", httpFields.get("Topic"));
+
+        queue.offer("/p/1", "newer", 60, Urgency.NORMAL, "t");
+        assertEquals(2, client.requests.size());
+        assertEquals("newer", body(client.requests.get(1)));
+    }
+
+    @Test
+    public void computesRemainingTtlWhenStreamIsOpened() {
+        final PushMessageSendQueue queue = new PushMessageSendQueue(client, 1);
+
+        queue.offer("/p/1", "a", 60, Urgency.NORMAL, null);
+        final JettyHttp2Client.RequestContent content = client.requests.get(0).content;
+
+        assertEquals("50", content.httpFields(System.nanoTime() + 10 * SECOND).get("TTL"));
+    }
+
+    @Test
+    public void sendsNextMessageWhenExpiredMessageIsDropped() {
+        final PushMessageSendQueue queue = new PushMessageSendQueue(client, 1);
+
+        queue.offer("/p/1", "a", 60, Urgency.NORMAL, null);
+        queue.offer("/p/1", "b", 60, Urgency.NORMAL, null);
+        final JettyHttp2Client.RequestContent content = client.requests.get(0).content;
+        assertFalse(content.expired(System.nanoTime() + 59 * SECOND));
+        assertTrue(content.expired(System.nanoTime() + 61 * SECOND));
+        content.dropped();
+        assertEquals(1, client.requests.size());
+
+        client.tasks.remove().run();
+        assertEquals(2, client.requests.size());
+        assertEquals("b", body(client.requests.get(1)));
+    }
+
+    @Test
+    public void sendsZeroTtlMessageOnlyImmediately() {
+        final PushMessageSendQueue queue = new PushMessageSendQueue(client, 2);
+
+        queue.offer("/p/1", "a", 0, Urgency.NORMAL, null);
+        queue.offer("/p/1", "b", 0, Urgency.NORMAL, null);
+
+        assertFalse(client.requests.get(0).content.expired(System.nanoTime()));
+        assertEquals("0", client.requests.get(0).content.httpFields(System.nanoTime()).get("TTL"));
+        assertTrue(client.requests.get(1).content.expired(System.nanoTime() + SECOND));
+    }
+
+    @Test
+    public void clearDropsQueuedMessages() {
+        final PushMessageSendQueue queue = new PushMessageSendQueue(client, 1);
+
+        queue.offer("/p/1", "a", 60, Urgency.NORMAL, null);
+        queue.offer("/p/1", "b", 60, Urgency.NORMAL, null);
+        queue.clear();
+        queue.offer("/p/1", "c", 60, Urgency.NORMAL, null);
+
+        assertEquals(2, client.requests.size());
+        assertEquals("c", body(client.requests.get(1)));
+        assertTrue(client.tasks.isEmpty());
+    }
+
+    private void complete(final int index) {
+        client.requests.get(index).listener.onReset(null, null);
+    }
+
+    private static String body(final Request request) {
+        request.content.httpFields(System.nanoTime());
+        return new String(request.content.body().array(), StandardCharsets.UTF_8);
+    }
+
+    private static final class Request {
+
+        private final JettyHttp2Client.RequestContent content;
+        private final Listener listener;
+
+        private Request(final JettyHttp2Client.RequestContent content, final Listener listener) {
+            this.content = content;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Records push message requests instead of sending them.
+     */
+    private static final class RecordingClient extends JettyHttp2Client {
+
+        private final List<Request> requests = new ArrayList<>();
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        private RecordingClient() {
+            super("localhost", 8443, new WebPushTransport(true));
+        }
+
+        @Override
+        public PendingRequest postRequest(final String path, final RequestContent content, final Listener listener) {
+            requests.add(new Request(content, listener));
+            return null;
+        }
+
+        @Override
+        public Executor executor() {
+            return tasks::add;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.MetaData.Request;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class RequestTemplatesTest {
+
+    private static final HttpFields HTTP_FIELDS = new HttpFields();
+
+    private final RequestTemplates templates = new RequestTemplates("https", "localhost", 8443, 2);
+
+    @Test
+    public void reusesHeadersFrame() {
+        final HeadersFrame frame = templates.headersFrame("GET", "/s/1", HTTP_FIELDS);
+
+        assertSame(frame, templates.headersFrame("GET", "/s/1", HTTP_FIELDS));
+        final Request request = (Request) frame.getMetaData();
+        assertEquals("GET", request.getMethod());
+        assertEquals("https://localhost:8443/s/1", request.getURI().toString());
+        assertTrue(frame.isEndStream());
+    }
+
+    @Test
+    public void distinguishesMethodsAndHeaderFields() {
+        final HeadersFrame get = templates.headersFrame("GET", "/s/1", HTTP_FIELDS);
+
+        assertNotSame(get, templates.headersFrame("DELETE", "/s/1", HTTP_FIELDS));
+        assertNotSame(get, templates.headersFrame("GET", "/s/1", null));
+        assertNotSame(get, templates.headersFrame("GET", "/s/1", new HttpFields()));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedPath() {
+        final HeadersFrame first = templates.headersFrame("GET", "/s/1", null);
+        final HeadersFrame second = templates.headersFrame("GET", "/s/2", null);
+        templates.headersFrame("GET", "/s/1", null);
+        templates.headersFrame("GET", "/s/3", null);
+
+        assertSame(first, templates.headersFrame("GET", "/s/1", null));
+        assertNotSame(second, templates.headersFrame("GET", "/s/2", null));
+    }
+
+    @Test
+    public void removesPath() {
+        final HeadersFrame frame = templates.headersFrame("GET", "/s/1", null);
+        templates.remove("/s/1");
+
+        assertNotSame(frame, templates.headersFrame("GET", "/s/1", null));
+    }
+
+    @Test
+    public void doesNotCacheNewHeadersFrame() {
+        final HeadersFrame frame = templates.newHeadersFrame("POST", "/p/1", null, false);
+
+        assertNotSame(frame, templates.newHeadersFrame("POST", "/p/1", null, false));
+        assertFalse(frame.isEndStream());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new RequestTemplates("https", "localhost", 8443, 0);
+    }
+
+    @Test
+    public void cachedHeadersFrameDoesNotAllocate() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+        final long threadId = Thread.currentThread().getId();
+        final int iterations = 100_000;
+        for (int i = 0; i < iterations; i++) { //warm up
+            templates.headersFrame("GET", "/s/1", HTTP_FIELDS);
+            templates.headersFrame("DELETE", "/s/2", null);
+        }
+
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            templates.headersFrame("GET", "/s/1", HTTP_FIELDS);
+            templates.headersFrame("DELETE", "/s/2", null);
+        }
+        final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        //only the measurement itself allocates a few bytes
+        assertTrue("allocated " + allocated + " bytes", allocated < iterations);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class RoundTripHistogramTest {
+
+    private final RoundTripHistogram histogram = new RoundTripHistogram();
+
+    @Test
+    public void returnsZeroWhenEmpty() {
+        assertEquals(Duration.ZERO, histogram.percentile(99));
+    }
+
+    @Test
+    public void returnsUpperBoundOfBucket() {
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(1500));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(1500));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(1500));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+
+        assertEquals(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(2048)), histogram.percentile(50));
+        assertEquals(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(2048)), histogram.percentile(75));
+        assertEquals(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(131072)), histogram.percentile(99));
+        assertEquals(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(2048)), histogram.percentile(0));
+    }
+
+    @Test
+    public void clampsExtremeValues() {
+        histogram.record(0);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(2)), histogram.percentile(50));
+        assertEquals(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(1L << 32)), histogram.percentile(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidPercentile() {
+        histogram.percentile(101);
+    }
+}
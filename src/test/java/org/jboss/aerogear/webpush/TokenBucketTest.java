@@ -0,0 +1,88 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void allowsBurstThenLimitsRate() {
+        final TokenBucket bucket = new TokenBucket(10, 2);
+        final long now = System.nanoTime();
+
+        assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(SECOND / 10, bucket.tryAcquire(now), 1);
+        assertEquals(0, bucket.tryAcquire(now + SECOND / 10));
+    }
+
+    @Test
+    public void refillsUpToBurst() {
+        final TokenBucket bucket = new TokenBucket(10, 2);
+        final long now = System.nanoTime();
+        bucket.take(now);
+        bucket.take(now);
+
+        final long later = now + 10 * SECOND;
+        assertEquals(0, bucket.tryAcquire(later));
+        assertEquals(0, bucket.tryAcquire(later));
+        assertEquals(SECOND / 10, bucket.delay(later), 1);
+    }
+
+    @Test
+    public void delayDoesNotTakeToken() {
+        final TokenBucket bucket = new TokenBucket(1, 1);
+        final long now = System.nanoTime();
+
+        assertEquals(0, bucket.delay(now));
+        assertEquals(0, bucket.delay(now));
+        assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(SECOND, bucket.delay(now), 1);
+    }
+
+    @Test
+    public void takeGoesIntoDebt() {
+        final TokenBucket bucket = new TokenBucket(1, 1);
+        final long now = System.nanoTime();
+        bucket.take(now);
+        bucket.take(now);
+
+        assertEquals(2 * SECOND, bucket.delay(now), 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroRate() {
+        TokenBucket.validate(0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNaNRate() {
+        TokenBucket.validate(Double.NaN, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroBurst() {
+        new TokenBucket(1, 0);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class WebPushClientTest {
+
+    private final JettyHttp2ClientTest.FakeSessionClient http2Client = new JettyHttp2ClientTest.FakeSessionClient();
+    private final WebPushClient client = new WebPushClient(http2Client);
+    private final Subscription subscription = new Subscription.Builder("/s/1")
+            .setPushResource("/p/1")
+            .setReceiptSubscribeResource("/r/1")
+            .setExpirationTime(0L)
+            .createSubscription();
+
+    @Before
+    public void connect() throws Exception {
+        client.connect();
+    }
+
+    @After
+    public void disconnect() throws Exception {
+        client.disconnect();
+    }
+
+    @Test
+    public void addsConsumerToOpenMonitor() {
+        client.monitor(subscription, pushMessage -> { });
+        client.monitor(subscription, pushMessage -> { });
+
+        assertEquals(1, http2Client.session().newStreamCount());
+    }
+
+    @Test
+    public void opensNewMonitorStreamWhenMonitorIsFinished() throws Exception {
+        final BlockingQueue<Optional<PushMessage>> received = new LinkedBlockingQueue<>();
+        client.monitor(subscription, true, received::add);
+        final FakeSession session = http2Client.session();
+        assertEquals(1, session.newStreamCount());
+
+        final FakeSession.NewStream monitor = session.newStream(0);
+        final FakeStream stream = monitor.open();
+        monitor.listener.onHeaders(stream, new HeadersFrame(stream.getId(),
+                new MetaData.Response(HttpVersion.HTTP_2, 204, new HttpFields()), null, true));
+        assertEquals(Optional.empty(), received.poll(5, TimeUnit.SECONDS));
+
+        client.monitor(subscription, received::add);
+        assertEquals(2, session.newStreamCount());
+        assertEquals("GET", session.newStream(1).method());
+        assertEquals("/s/1", session.newStream(1).path());
+    }
+
+    @Test
+    public void acceptsUrlSafeBase64Topic() {
+        client.sendMessage("/p/1", "a", Duration.ofSeconds(60), Urgency.NORMAL, "abc-XYZ_0123456789abcdefghijklmn");
+
+        assertEquals(1, http2Client.session().newStreamCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooLongTopic() {
+        client.sendMessage("/p/1", "a", Duration.ofSeconds(60), Urgency.NORMAL, "abcdefghijklmnopqrstuvwxyz0123456");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTopicOutsideOfUrlSafeBase64Alphabet() {
+        client.sendMessage("/p/1", "a", Duration.ofSeconds(60), Urgency.NORMAL, "a+b");
+    }
+}
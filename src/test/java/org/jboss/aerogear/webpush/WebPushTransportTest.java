@@ -0,0 +1,103 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.webpush;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WebPushTransportTest {
+
+    private final WebPushTransport transport = new WebPushTransport(true);
+
+    @After
+    public void stop() throws Exception {
+        transport.client().stop();
+    }
+
+    @Test
+    public void startsOnFirstRetainAndStopsOnLastRelease() throws Exception {
+        assertTrue(transport.client().isStopped());
+
+        transport.retain();
+        assertTrue(transport.client().isStarted());
+        transport.retain();
+        transport.release();
+        assertTrue(transport.client().isStarted());
+
+        transport.release();
+        assertTrue(transport.client().isStopped());
+    }
+
+    @Test
+    public void canBeStartedAgain() throws Exception {
+        transport.retain();
+        transport.release();
+
+        transport.retain();
+        assertTrue(transport.client().isStarted());
+        transport.release();
+        assertTrue(transport.client().isStopped());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsReleaseWithoutRetain() throws Exception {
+        transport.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsReleaseAfterLastReference() throws Exception {
+        transport.retain();
+        transport.release();
+        transport.release();
+    }
+
+    @Test
+    public void releaseOnTransportThreadDoesNotWaitForItself() throws Exception {
+        transport.retain();
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicLong releaseNanos = new AtomicLong();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        transport.executor().execute(() -> {
+            final long start = System.nanoTime();
+            try {
+                transport.release();
+            } catch (Exception e) {
+                failure.set(e);
+            }
+            releaseNanos.set(System.nanoTime() - start);
+            released.countDown();
+        });
+
+        assertTrue(released.await(10, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertTrue("release took " + releaseNanos.get() + " ns", releaseNanos.get() < TimeUnit.SECONDS.toNanos(1));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!transport.client().isStopped() && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertTrue(transport.client().isStopped());
+    }
+}